@@ -0,0 +1,96 @@
+package com.github.ibodrov.simpleflowengine.benchmarks;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import com.github.ibodrov.simpleflowengine.Engine;
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.commands.Block;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out/fan-in latency of a parallel block: spawning {@code width}
+ * forks and joining them, with blocking and non-blocking joins,
+ * on a fixed thread pool and on a work-stealing pool.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@org.openjdk.jmh.annotations.Fork(1)
+public class ParallelBlockBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int width;
+
+    @Param({"false", "true"})
+    public boolean nonBlockingJoin;
+
+    @Param({"false", "true"})
+    public boolean workStealing;
+
+    private Engine engine;
+    private Command block;
+
+    @Setup
+    public void setup() {
+        int threads = java.lang.Runtime.getRuntime().availableProcessors();
+
+        Engine.Builder b = new Engine.Builder().withNonBlockingJoin(nonBlockingJoin);
+        if (workStealing) {
+            b.withWorkStealing(threads);
+        } else {
+            b.withExecutor(Executors.newFixedThreadPool(threads));
+        }
+        engine = b.build();
+
+        List<Command> branches = new ArrayList<>(width);
+        for (int i = 0; i < width; i++) {
+            branches.add(new Noop());
+        }
+
+        block = new Block(Block.Strategy.PARALLEL, branches);
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.close();
+    }
+
+    @Benchmark
+    public State forkJoin() {
+        return engine.start(block);
+    }
+}
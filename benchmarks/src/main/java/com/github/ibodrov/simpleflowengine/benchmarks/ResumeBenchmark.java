@@ -0,0 +1,115 @@
+package com.github.ibodrov.simpleflowengine.benchmarks;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import com.github.ibodrov.simpleflowengine.Engine;
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.commands.Block;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+import com.github.ibodrov.simpleflowengine.commands.Suspend;
+import com.github.ibodrov.simpleflowengine.serialization.BinaryStateSerializer;
+import com.github.ibodrov.simpleflowengine.serialization.StateSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Cost of resuming a single branch of a suspended process with
+ * {@code width ^ depth} suspended branches. Each invocation resumes
+ * a fresh copy of the process (the deserialization is not measured).
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@org.openjdk.jmh.annotations.Fork(1)
+public class ResumeBenchmark {
+
+    @Param({"2", "10"})
+    public int width;
+
+    @Param({"1", "3"})
+    public int depth;
+
+    private final StateSerializer serializer = new BinaryStateSerializer();
+
+    private Engine engine;
+    private String eventRef;
+    private byte[] suspended;
+    private State state;
+
+    @Setup
+    public void setup() throws Exception {
+        engine = new Engine.Builder().build();
+
+        // the first leaf's event: "ev" followed by a "0" per level
+        StringBuilder sb = new StringBuilder("ev");
+        for (int i = 0; i < depth; i++) {
+            sb.append('0');
+        }
+        eventRef = sb.toString();
+
+        suspended = serializer.serialize(engine.start(tree(width, depth, "ev")));
+    }
+
+    @Setup(Level.Invocation)
+    public void load() throws Exception {
+        state = serializer.deserialize(suspended);
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.close();
+    }
+
+    @Benchmark
+    public State resume() {
+        return engine.resume(state, eventRef);
+    }
+
+    static Command tree(int width, int depth, String eventRef) {
+        List<Command> branches = new ArrayList<>(width);
+        for (int i = 0; i < width; i++) {
+            String ev = eventRef + i;
+            if (depth <= 1) {
+                branches.add(new Block(asList(new Suspend(ev), new Noop())));
+            } else {
+                branches.add(tree(width, depth - 1, ev));
+            }
+        }
+
+        return new Block(Block.Strategy.PARALLEL, branches);
+    }
+}
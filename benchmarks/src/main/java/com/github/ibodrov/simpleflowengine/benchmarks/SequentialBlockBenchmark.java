@@ -0,0 +1,94 @@
+package com.github.ibodrov.simpleflowengine.benchmarks;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import com.github.ibodrov.simpleflowengine.Engine;
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.commands.Block;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+import com.github.ibodrov.simpleflowengine.program.Program;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of sequential blocks: commands per second evaluated
+ * in the caller's thread, interpreted and {@link Program compiled}.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@org.openjdk.jmh.annotations.Fork(1)
+public class SequentialBlockBenchmark {
+
+    private static final int COMMANDS = 1000;
+
+    private Engine engine;
+    private Command block;
+    private Program program;
+
+    @Setup
+    public void setup() {
+        engine = new Engine.Builder().build();
+
+        // nested blocks, 10 x 100 commands
+        List<Command> outer = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            List<Command> inner = new ArrayList<>();
+            for (int j = 0; j < COMMANDS / 10; j++) {
+                inner.add(new Noop());
+            }
+            outer.add(new Block(inner));
+        }
+
+        block = new Block(outer);
+        program = Program.compile(block);
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public State interpreted() {
+        return engine.start(block);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public State compiled() {
+        return engine.start(program);
+    }
+}
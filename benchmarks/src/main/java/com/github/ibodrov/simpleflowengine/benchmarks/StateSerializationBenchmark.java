@@ -0,0 +1,126 @@
+package com.github.ibodrov.simpleflowengine.benchmarks;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.Engine;
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.commands.Block;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+import com.github.ibodrov.simpleflowengine.commands.Suspend;
+import com.github.ibodrov.simpleflowengine.serialization.BinaryStateSerializer;
+import com.github.ibodrov.simpleflowengine.serialization.JavaStateSerializer;
+import com.github.ibodrov.simpleflowengine.serialization.StateSerializer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Compares the Java serialization and the binary format using
+ * a suspended process with {@code width} suspended parallel branches.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@org.openjdk.jmh.annotations.Fork(1)
+public class StateSerializationBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int width;
+
+    private final StateSerializer java = new JavaStateSerializer();
+    private final StateSerializer binary = new BinaryStateSerializer();
+
+    private State state;
+    private byte[] javaBytes;
+    private byte[] binaryBytes;
+
+    @Setup
+    public void setup() throws Exception {
+        try (Engine engine = new Engine.Builder().build()) {
+            state = engine.start(suspendedBranches(width));
+        }
+
+        javaBytes = java.serialize(state);
+        binaryBytes = binary.serialize(state);
+    }
+
+    @Benchmark
+    public byte[] javaSerialize(Size size) throws Exception {
+        byte[] result = java.serialize(state);
+        size.bytes = result.length;
+        return result;
+    }
+
+    @Benchmark
+    public State javaDeserialize() throws Exception {
+        return java.deserialize(javaBytes);
+    }
+
+    @Benchmark
+    public byte[] binarySerialize(Size size) throws Exception {
+        byte[] result = binary.serialize(state);
+        size.bytes = result.length;
+        return result;
+    }
+
+    @Benchmark
+    public State binaryDeserialize() throws Exception {
+        return binary.deserialize(binaryBytes);
+    }
+
+    /**
+     * Reports the size of the serialized state next to the time
+     * as the secondary {@code bytes} result of the serialization benchmarks.
+     */
+    @org.openjdk.jmh.annotations.State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Size {
+
+        public long bytes;
+    }
+
+    static Command suspendedBranches(int width) {
+        List<Command> branches = new ArrayList<>(width);
+        for (int i = 0; i < width; i++) {
+            branches.add(new Block(asList(
+                    new Suspend("ev" + i),
+                    new Suspend("after" + i)
+            )));
+        }
+
+        return new Block(Block.Strategy.PARALLEL, branches);
+    }
+}
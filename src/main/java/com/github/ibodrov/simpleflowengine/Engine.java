@@ -0,0 +1,1769 @@
+package com.github.ibodrov.simpleflowengine;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.State.Status;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+import com.github.ibodrov.simpleflowengine.journal.JournalListener;
+import com.github.ibodrov.simpleflowengine.program.Frame;
+import com.github.ibodrov.simpleflowengine.program.Program;
+import com.github.ibodrov.simpleflowengine.store.StateStore;
+import com.github.ibodrov.simpleflowengine.timer.TimingWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Executes flows consisting of series of {@link Command} elements.
+ * <p>
+ * Thread-safe: a single engine can be used to {@link #start(Command)}
+ * and {@link #resume(State, String)} many independent processes concurrently
+ * using the same executor. A process (a {@link State} tree) shouldn't be
+ * resumed concurrently.
+ * <p>
+ * Besides the default executor, additional named executor pools can be
+ * {@link Builder#withExecutor(String, ExecutorService) registered}.
+ * Child "threads" run on the pool specified by their {@link State#getPool() state}.
+ * <p>
+ * With a {@link Builder#withStateStore(StateStore) state store} configured,
+ * the engine saves processes after each execution and removes them once
+ * they complete. Such processes can be {@link #resume(String) resumed}
+ * by an eventRef alone.
+ * <p>
+ * {@link com.github.ibodrov.simpleflowengine.commands.SuspendUntil Timers} are
+ * kept in a {@link TimingWheel} and resume their processes on the default executor.
+ * The engine serializes its own executions of the same process, but
+ * the callers must not resume a process with pending timers using
+ * a different copy of its state. Timers and deadlines modify the same state
+ * object the caller holds, use {@link #withExecutionLock(State, Function)}
+ * to access such processes while the engine is running. Timers of the processes
+ * in the state store are bound to the processes' IDs instead: they resume
+ * the latest stored version, a newly loaded copy of a process takes over
+ * the timers of the previous one.
+ * <p>
+ * The engine must be {@link #close() closed} after use.
+ */
+public class Engine implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(Engine.class);
+
+    /**
+     * Sampled listeners are tracked using a bit mask.
+     */
+    private static final int MAX_LISTENERS = 64;
+
+    private static final int STORE_LOCK_STRIPES = 64;
+
+    private final ExecutorService executor;
+    private final Map<String, ExecutorService> pools;
+    private final RuntimeListener[] listeners;
+    private final int[] sampleRates;
+    private final boolean nonBlockingJoin;
+    private final StateStore store;
+    private final long timerTick;
+    private final StateIdGenerator idGenerator;
+    private final long shutdownTimeout;
+
+    /**
+     * All tasks of all processes which are queued or running.
+     */
+    private final TaskGroup tasks = new TaskGroup();
+    private final RuntimeContext ctx = new RuntimeContextImpl();
+
+    /**
+     * Serialize the executions of the stored processes which are loaded by their IDs,
+     * so concurrent {@link #resume(String)} calls don't execute different copies
+     * of the same process. Striped by the root's ID, a power of two.
+     */
+    private final ReentrantLock[] storeLocks;
+
+    /**
+     * Stored processes with timers or deadlines: the root's ID to the copy
+     * of the tree the scheduled timeouts belong to, see {@link #bindTimers(State)}.
+     */
+    private final ConcurrentMap<StateId, State> timerRoots = new ConcurrentHashMap<>();
+
+    /**
+     * Created on first use.
+     */
+    private volatile TimingWheel timers;
+
+    private volatile boolean closed = false;
+
+    private Engine(ExecutorService executor, Map<String, ExecutorService> pools,
+                   List<RuntimeListener> listeners, boolean nonBlockingJoin, StateStore store,
+                   long timerTick, StateIdGenerator idGenerator, long shutdownTimeout) {
+
+        if (listeners.size() > MAX_LISTENERS) {
+            throw new IllegalArgumentException("Too many listeners: " + listeners.size() + " (max " + MAX_LISTENERS + ")");
+        }
+
+        this.executor = executor;
+        this.pools = pools;
+        this.listeners = listeners.toArray(new RuntimeListener[0]);
+
+        this.sampleRates = new int[this.listeners.length];
+        for (int i = 0; i < sampleRates.length; i++) {
+            int rate = this.listeners[i].getCommandSampleRate();
+            if (rate < 1) {
+                throw new IllegalArgumentException("Invalid sample rate: " + rate);
+            }
+            sampleRates[i] = rate;
+        }
+        this.nonBlockingJoin = nonBlockingJoin;
+        this.store = store;
+        this.timerTick = timerTick;
+        this.idGenerator = idGenerator;
+        this.shutdownTimeout = shutdownTimeout;
+
+        this.storeLocks = new ReentrantLock[STORE_LOCK_STRIPES];
+        for (int i = 0; i < storeLocks.length; i++) {
+            storeLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Starts a new process using the provided command as a starting point.
+     *
+     * @return the main thread state. The returned state object can be
+     * saved and used later to {@link #resume(State, String)} the process.
+     */
+    public State start(Command cmd) {
+        return start(cmd, 0);
+    }
+
+    /**
+     * Starts a new process which is {@link #cancel(State, StateId) cancelled}
+     * if it doesn't complete in the specified time. The time includes
+     * the time the process spends suspended.
+     *
+     * @see #start(Command)
+     */
+    public State start(Command cmd, long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Invalid timeout: " + timeout);
+        }
+        return start(cmd, System.currentTimeMillis() + unit.toMillis(timeout));
+    }
+
+    private State start(Command cmd, long deadline) {
+        assertOpen();
+
+        log.info("start -> starting...");
+
+        // create the initial state
+        State root = new State(ctx.nextStateId());
+        root.trackChanges();
+        root.getStack().push(cmd);
+
+        ReentrantLock lock = root.executionLock();
+        lock.lock();
+        try {
+            if (deadline != 0) {
+                root.setDeadline(deadline);
+                scheduleDeadline(root);
+            }
+
+            for (RuntimeListener l : listeners) {
+                l.onStart(root);
+            }
+
+            // execute the root "thread"
+            evalRoot(root);
+
+            persist(root);
+            handleErrors(root);
+            cleanup(root);
+        } finally {
+            lock.unlock();
+        }
+
+        log.info("start -> done");
+        return root;
+    }
+
+    /**
+     * Starts a new process using the pre-compiled program.
+     *
+     * @see #start(Command)
+     * @see Program#compile(Command)
+     */
+    public State start(Program program) {
+        return start(new Frame(program, Program.ENTRY));
+    }
+
+    /**
+     * Resumes the process from a specific point ("event").
+     *
+     * @return the updated state object.
+     */
+    public State resume(State root, String eventRef) {
+        assertOpen();
+
+        log.info("resume ['{}'] -> starting...", eventRef);
+
+        ReentrantLock lock = root.executionLock();
+        lock.lock();
+        try {
+            State owner = findOwner(root, eventRef);
+            wake(root, Collections.singletonMap(eventRef, owner));
+
+            // execute the root "thread" in the caller's thread
+            evalRoot(root);
+
+            persist(root);
+            handleErrors(root);
+            cleanup(root);
+        } finally {
+            lock.unlock();
+        }
+
+        log.info("resume ['{}'] -> done", eventRef);
+        return root;
+    }
+
+    /**
+     * Resumes a process stored in the {@link Builder#withStateStore(StateStore) state store}.
+     * The process is looked up by the eventRef, loaded, resumed and saved back.
+     * Concurrent calls for the same process are executed one after another,
+     * each one loads the version saved by the previous one.
+     *
+     * @return the updated state object.
+     */
+    public State resume(String eventRef) {
+        if (store == null) {
+            throw new IllegalStateException("State store is not configured");
+        }
+
+        StateId rootId;
+        try {
+            rootId = store.findRoot(eventRef);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        if (rootId == null) {
+            throw new IllegalStateException("EventRef not found: " + eventRef);
+        }
+
+        ReentrantLock lock = storeLock(rootId);
+        lock.lock();
+        try {
+            State root;
+            try {
+                root = store.load(rootId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            // the event might be resumed by someone else while we were waiting
+            if (root == null || root.findEventOwner(eventRef) == null) {
+                throw new IllegalStateException("EventRef not found: " + eventRef);
+            }
+
+            // the tree might be freshly loaded
+            bindTimers(root);
+
+            return resume(root, eventRef);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Continues a process restored after a crash, e.g. by
+     * {@link com.github.ibodrov.simpleflowengine.journal.JournalListener#recover(
+     * com.github.ibodrov.simpleflowengine.journal.Journal,
+     * com.github.ibodrov.simpleflowengine.serialization.StateSerializer) recovering}
+     * it from a journal. The states which were running ({@link Status#READY}
+     * or {@link Status#WAITING}) are scheduled again. Commands executed after
+     * the last saved transition of a state are executed again.
+     *
+     * @return the updated state object.
+     */
+    public State recover(State root) {
+        assertOpen();
+
+        log.info("recover ['{}'] -> starting...", root.getId());
+
+        if (root.getStatus() == Status.DONE) {
+            return root;
+        }
+
+        ReentrantLock lock = root.executionLock();
+        lock.lock();
+        try {
+            // timers of the restored process
+            scheduleTimers(root);
+
+            List<State> running = new ArrayList<>();
+            collectRunning(root, running);
+
+            if (running.isEmpty() && root.getStatus() == Status.SUSPENDED) {
+                // nothing to continue, the process waits for its events
+                return root;
+            }
+
+            root.trackChanges();
+            wakeDependencies(running);
+
+            // the root can be in any of the non-final statuses here, but nothing
+            // else changes it: the tree is not running and we hold its lock
+            root.setStatus(Status.READY);
+            evalRoot(root);
+
+            persist(root);
+            handleErrors(root);
+            cleanup(root);
+        } finally {
+            lock.unlock();
+        }
+
+        log.info("recover ['{}'] -> done", root.getId());
+        return root;
+    }
+
+    /**
+     * Resumes multiple processes, each from one or more events.
+     * <p>
+     * All events are validated first, then the owners of the events
+     * of all processes are woken in one pass per tree and scheduled together
+     * on the executor. The roots are evaluated in the caller's thread
+     * one after another, while their children keep running in the executor.
+     * Each process stays locked from the wake up until it's evaluated and persisted,
+     * so other calls (e.g. timers or {@link #cancel(State, StateId)}) can't execute
+     * the process in between.
+     * <p>
+     * A failure of one process doesn't prevent the others from completing:
+     * the errors are thrown as {@link MultipleExceptions} after all processes stop.
+     *
+     * @param events root states and the eventRefs to resume them from.
+     * @return the updated state objects, in the iteration order of {@code events}.
+     */
+    public List<State> resumeAll(Map<State, ? extends Collection<String>> events) {
+        assertOpen();
+
+        log.info("resumeAll [{} process(es)] -> starting...", events.size());
+
+        for (State root : events.keySet()) {
+            if (root.getParent() != null) {
+                throw new IllegalArgumentException("Not a root state: " + root.getId());
+            }
+        }
+
+        // the processes are locked from the wake up until they are persisted.
+        // Always in the same order, so the batches with common processes can't deadlock
+        List<State> lockOrder = new ArrayList<>(events.keySet());
+        lockOrder.sort(Comparator.comparingLong((State r) -> r.getId().getValue())
+                .thenComparingInt(System::identityHashCode));
+
+        Set<ReentrantLock> held = new LinkedHashSet<>(lockOrder.size());
+        List<State> result = new ArrayList<>(events.size());
+        List<Throwable> errors = new ArrayList<>();
+        try {
+            for (State root : lockOrder) {
+                ReentrantLock lock = root.executionLock();
+                lock.lock();
+                held.add(lock);
+            }
+
+            // validate everything before waking anything
+            Map<State, Map<String, State>> owners = new LinkedHashMap<>(events.size());
+            events.forEach((root, eventRefs) -> {
+                Map<String, State> m = new LinkedHashMap<>(eventRefs.size());
+                for (String eventRef : eventRefs) {
+                    m.put(eventRef, findOwner(root, eventRef));
+                }
+                owners.put(root, m);
+            });
+
+            owners.forEach(this::wake);
+
+            for (State root : owners.keySet()) {
+                try {
+                    evalRoot(root);
+                    persist(root);
+
+                    if (root.getLastError() != null) {
+                        errors.add(root.getLastError());
+                    }
+                    cleanup(root);
+                } finally {
+                    ReentrantLock lock = root.executionLock();
+                    held.remove(lock);
+                    lock.unlock();
+                }
+
+                result.add(root);
+            }
+        } finally {
+            for (ReentrantLock lock : held) {
+                lock.unlock();
+            }
+        }
+
+        log.info("resumeAll [{} process(es)] -> done", events.size());
+
+        if (!errors.isEmpty()) {
+            throw new MultipleExceptions(errors);
+        }
+
+        return result;
+    }
+
+    private static State findOwner(State root, String eventRef) {
+        if (root.getStatus() != Status.SUSPENDED) {
+            throw new IllegalStateException("The process is not suspended: " + root.getId());
+        }
+
+        State owner = root.findEventOwner(eventRef);
+        if (owner == null) {
+            throw new IllegalStateException("EventRef not found: " + eventRef);
+        }
+        return owner;
+    }
+
+    /**
+     * Removes the events and schedules their owners and the owners' ancestors.
+     * The root is left {@link Status#READY} to be evaluated by the caller.
+     *
+     * @param owners eventRefs and their owners
+     */
+    private void wake(State root, Map<String, State> owners) {
+        root.trackChanges();
+
+        owners.forEach((eventRef, owner) -> {
+            owner.removeEventRef(eventRef);
+
+            for (RuntimeListener l : listeners) {
+                l.onResume(owner, eventRef);
+            }
+        });
+
+        wakeDependencies(owners.values());
+
+        // checked by findOwner under the same lock
+        if (!root.compareAndSetStatus(Status.SUSPENDED, Status.READY)) {
+            throw new IllegalStateException("The process is not suspended: " + root.getId());
+        }
+    }
+
+    /**
+     * Executes the action while holding the process' execution lock, i.e. while
+     * the process is not executed by the engine.
+     * <p>
+     * Processes with {@link com.github.ibodrov.simpleflowengine.commands.SuspendUntil timers}
+     * or deadlines are resumed and cancelled on the engine's threads, using the same state
+     * object the caller holds. Reading such a process (e.g. its status) or serializing it
+     * while the engine is running must be done using this method.
+     *
+     * @param root the process.
+     * @return the action's result.
+     */
+    public <T> T withExecutionLock(State root, Function<? super State, ? extends T> action) {
+        if (root.getParent() != null) {
+            throw new IllegalArgumentException("Not a root state: " + root.getId());
+        }
+
+        ReentrantLock lock = root.executionLock();
+        lock.lock();
+        try {
+            return action.apply(root);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cancels a state of the process and all its children. The commands
+     * running in the cancelled states are interrupted, the states become
+     * {@link Status#DONE} with a {@link CancellationException} as
+     * the {@link State#getLastError() last error}. Joins waiting for
+     * the cancelled states see the error, joins of the cancelled states
+     * return immediately.
+     * <p>
+     * Can be called while the process is running. Returns once the process
+     * stops, i.e. commands which ignore interrupts delay the return.
+     *
+     * @param root the process.
+     * @param id the state to cancel, e.g. the root's ID to cancel the whole process.
+     * @return the updated state object.
+     */
+    public State cancel(State root, StateId id) {
+        assertOpen();
+
+        State target = find(root, id);
+        if (target == null) {
+            throw new IllegalStateException("State not found: " + id);
+        }
+
+        return cancel(root, target, new CancellationException("Cancelled: " + id));
+    }
+
+    private State cancel(State root, State target, CancellationException error) {
+        log.info("cancel ['{}'] -> starting...", target.getId());
+
+        // signal the running states first, so the current execution (if any)
+        // finishes promptly and releases the tree
+        cancelTree(target, error);
+
+        ReentrantLock lock = root.executionLock();
+        lock.lock();
+        try {
+            // nothing runs once the tasks of the tree complete
+            root.tasks().awaitUninterruptibly();
+
+            List<State> suspended = new ArrayList<>();
+            collectSuspended(target, suspended);
+
+            if (!suspended.isEmpty()) {
+                root.trackChanges();
+
+                if (root.getStatus() == Status.DONE) {
+                    // nobody is going to join the states, finish them right away
+                    for (State s : suspended) {
+                        finish(s, error);
+                    }
+                } else {
+                    // let the states fail and their parents join them
+                    for (State s : suspended) {
+                        s.clearEventRefs();
+                    }
+
+                    wakeDependencies(suspended);
+
+                    // all tasks are done, so the root is either DONE or SUSPENDED
+                    if (!root.compareAndSetStatus(Status.SUSPENDED, Status.READY)) {
+                        throw new IllegalStateException("The process is not suspended: " + root.getId());
+                    }
+                    evalRoot(root);
+                }
+            }
+
+            persist(root);
+            cleanup(root);
+        } finally {
+            lock.unlock();
+        }
+
+        log.info("cancel ['{}'] -> done", target.getId());
+        return root;
+    }
+
+    private void cancelTree(State state, CancellationException error) {
+        if (state.getStatus() == Status.DONE) {
+            return;
+        }
+
+        if (state.cancel(error) && state.getParent() != null) {
+            // was parked waiting for its children, finish it
+            submit(state, executorFor(state));
+        }
+
+        for (State c : state.snapshotChildren()) {
+            cancelTree(c, error);
+        }
+    }
+
+    /**
+     * Cancels a subtree of the currently running process.
+     *
+     * @see RuntimeContext#cancel(State, CancellationException)
+     */
+    private void cancelRunning(State state, CancellationException error) {
+        cancelTree(state, error);
+        finishStopped(state, error);
+    }
+
+    private void finishStopped(State state, CancellationException error) {
+        if (state.getStatus() == Status.DONE) {
+            return;
+        }
+
+        if (state.getStatus() == Status.SUSPENDED && !state.isRunning()) {
+            // nothing is going to evaluate the state
+            for (State c : state.snapshotChildren()) {
+                finishStopped(c, error);
+            }
+            finish(state, error);
+            return;
+        }
+
+        for (State c : state.snapshotChildren()) {
+            finishStopped(c, error);
+        }
+    }
+
+    /**
+     * Completes a cancelled state which is not running. Suspended states can't
+     * be resumed while the tree is being executed or cancelled, but the same
+     * state can be finished by multiple cancelling threads - only one of them
+     * completes it.
+     */
+    private void finish(State state, CancellationException error) {
+        // the error must be visible to anyone who sees the DONE status, so the
+        // threads race for the error first. Only DONE states have errors
+        if (state.getStatus() != Status.SUSPENDED || !state.compareAndSetLastError(null, error)) {
+            return;
+        }
+
+        if (!state.compareAndSetStatus(Status.SUSPENDED, Status.DONE)) {
+            // not expected, the state is not running. Leave it as it was
+            state.compareAndSetLastError(error, null);
+            return;
+        }
+
+        state.clearEventRefs();
+        state.markChanged();
+
+        TimingWheel.Timeout deadline = state.getDeadlineTimeout();
+        if (deadline != null) {
+            deadline.cancel();
+            state.setDeadlineTimeout(null);
+        }
+
+        fireDone(state);
+    }
+
+    private void scheduleDeadline(State state) {
+        State root = state.getRoot();
+        TimingWheel.Timeout t = timers().schedule(state.getDeadline(), () -> {
+            if (closed) {
+                return;
+            }
+
+            try {
+                executor.execute(() -> {
+                    if (store != null) {
+                        // the process might have been loaded again since, cancel the current copy
+                        withStoredRoot(root.getId(), r -> cancelExpired(r, find(r, state.getId())));
+                    } else {
+                        cancelExpired(root, state);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.warn("deadline ['{}'] -> rejected, the engine is closed", state.getId());
+            }
+        });
+        state.setDeadlineTimeout(t);
+    }
+
+    private void cancelExpired(State root, State state) {
+        if (closed || state == null || state.getStatus() == Status.DONE) {
+            return;
+        }
+
+        try {
+            cancel(root, state, new CancellationException("Deadline exceeded: " + state.getId()));
+        } catch (RuntimeException e) {
+            log.warn("deadline ['{}'] -> error", state.getId(), e);
+        }
+    }
+
+    /**
+     * Schedules the {@link State#getTimers() timers} and {@link State#getDeadline() deadlines}
+     * of a process, e.g. after the process is deserialized. Timers which are already
+     * scheduled by this engine are skipped. Expired timers fire immediately.
+     */
+    public void scheduleTimers(State root) {
+        assertOpen();
+
+        root.getTimers().keySet().forEach(eventRef -> {
+            if (!root.hasTimeout(eventRef)) {
+                scheduleTimer(root, eventRef);
+            }
+        });
+
+        if (root.getDeadline() != 0 && root.getStatus() != Status.DONE && root.getDeadlineTimeout() == null) {
+            scheduleDeadline(root);
+        }
+
+        for (State c : root.getChildren()) {
+            scheduleTimers(c);
+        }
+    }
+
+    /**
+     * @return number of child "threads" of all processes which are queued
+     * or running in the executors.
+     */
+    public int getInFlightTaskCount() {
+        return tasks.size();
+    }
+
+    /**
+     * @return number of child "threads" of the process which are queued
+     * or running in the executors. Always {@code 0} once the process returns
+     * from {@link #start(Command)}, {@link #resume(State, String)}, etc.
+     */
+    public int getInFlightTaskCount(State root) {
+        return root.getRoot().tasks().size();
+    }
+
+    /**
+     * Stops accepting new processes and shuts down the executors.
+     * Processes which are still running might fail to spawn new "threads".
+     * Pending timers are discarded.
+     * <p>
+     * Waits for the running tasks to complete, up to the
+     * {@link Builder#withShutdownTimeout(long, TimeUnit) shutdown timeout}.
+     * The tasks which are still running after that are interrupted.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        TimingWheel t = timers;
+        if (t != null) {
+            t.close();
+        }
+
+        executor.shutdown();
+        pools.values().forEach(ExecutorService::shutdown);
+
+        boolean done;
+        try {
+            done = tasks.await(shutdownTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done = false;
+        }
+
+        if (!done) {
+            log.warn("close -> {} task(s) are still running, cancelling...", tasks.size());
+            tasks.cancelAll();
+            executor.shutdownNow();
+            pools.values().forEach(ExecutorService::shutdownNow);
+        }
+    }
+
+    private void scheduleTimer(State state, String eventRef) {
+        Long deadline = state.getTimers().get(eventRef);
+        if (deadline == null) {
+            throw new IllegalStateException("Timer not found: " + eventRef);
+        }
+
+        State root = state.getRoot();
+        TimingWheel.Timeout t = timers().schedule(deadline, () -> fire(root, eventRef));
+        state.setTimeout(eventRef, t);
+    }
+
+    /**
+     * Called by the timing wheel's thread when the deadline of a timer comes.
+     * Resumes the process on the default executor.
+     */
+    private void fire(State root, String eventRef) {
+        if (closed) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                if (store != null) {
+                    // the process might have been loaded again since, resume the current copy
+                    withStoredRoot(root.getId(), r -> resumePending(r, eventRef));
+                } else {
+                    resumePending(root, eventRef);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("fire ['{}'] -> rejected, the engine is closed", eventRef);
+        }
+    }
+
+    private void resumePending(State root, String eventRef) {
+        ReentrantLock lock = root.executionLock();
+        lock.lock();
+        try {
+            // the event might be resumed by someone else in the meantime
+            if (closed || root.findEventOwner(eventRef) == null) {
+                return;
+            }
+
+            resume(root, eventRef);
+        } catch (Exception e) {
+            log.warn("fire ['{}'] -> error", eventRef, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Loads the stored process and executes the action under the process' lock,
+     * see {@link #resume(String)}. Does nothing if the process is not found.
+     */
+    private void withStoredRoot(StateId rootId, Consumer<State> action) {
+        ReentrantLock lock = storeLock(rootId);
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+
+            State root = store.load(rootId);
+            if (root == null) {
+                return;
+            }
+
+            bindTimers(root);
+            action.accept(root);
+        } catch (Exception e) {
+            log.warn("withStoredRoot ['{}'] -> error", rootId, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Schedules the timers of a stored process' copy and cancels the timeouts
+     * of the previously used copy (if any), so the timers of the process fire once
+     * and only for the current copy. Must be called under the process' lock.
+     */
+    private void bindTimers(State root) {
+        trackTimers(root);
+        scheduleTimers(root);
+    }
+
+    /**
+     * Makes the copy of a stored process the owner of the process' timeouts.
+     */
+    private void trackTimers(State root) {
+        StateId id = root.getId();
+
+        State prev = timerRoots.get(id);
+        if (prev != null && prev != root) {
+            cancelTimeouts(prev);
+        }
+
+        if (hasTimers(root)) {
+            timerRoots.put(id, root);
+        } else {
+            timerRoots.remove(id);
+        }
+    }
+
+    private static void cancelTimeouts(State state) {
+        state.cancelTimeouts();
+        for (State c : state.getChildren()) {
+            cancelTimeouts(c);
+        }
+    }
+
+    private static boolean hasTimers(State state) {
+        if (state.getStatus() == Status.DONE) {
+            return false;
+        }
+
+        if (!state.getTimers().isEmpty() || state.getDeadline() != 0) {
+            return true;
+        }
+
+        for (State c : state.getChildren()) {
+            if (hasTimers(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private TimingWheel timers() {
+        TimingWheel t = timers;
+        if (t != null) {
+            return t;
+        }
+
+        synchronized (this) {
+            if (timers == null) {
+                assertOpen();
+                timers = new TimingWheel(timerTick);
+            }
+            return timers;
+        }
+    }
+
+    /**
+     * Evaluates the root state in the caller's thread. If the root gets
+     * {@link Status#WAITING parked} the caller's thread waits until
+     * the root's children stop and then continues the evaluation.
+     */
+    private void evalRoot(State root) {
+        while (!eval(root)) {
+            try {
+                root.awaitUnparked();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for children of " + root.getId(), e);
+            }
+        }
+
+        // nothing may keep running once the caller gets the tree back,
+        // e.g. children of cancelled states (which don't wait for their children)
+        // or children spawned without a join
+        TaskGroup group = root.tasks();
+        if (root.getStatus() == Status.DONE && group.size() > 0) {
+            cancelOrphans(root, new CancellationException("The process is complete: " + root.getId()));
+        }
+        group.awaitUninterruptibly();
+    }
+
+    /**
+     * Cancels the running descendants of a completed state.
+     */
+    private void cancelOrphans(State state, CancellationException error) {
+        for (State c : state.snapshotChildren()) {
+            Status s = c.getStatus();
+            if (s == Status.READY || s == Status.WAITING) {
+                log.warn("cancelOrphans ['{}'] -> cancelling a running child: {}", state.getRoot().getId(), c.getId());
+                cancelTree(c, error);
+            } else {
+                cancelOrphans(c, error);
+            }
+        }
+    }
+
+    /**
+     * Evaluates the state until it's {@link Status#DONE}, {@link Status#SUSPENDED}
+     * or {@link Status#WAITING parked}.
+     *
+     * @return {@code false} if the state was parked. Parked states are
+     * resumed by their last running child.
+     */
+    private boolean eval(State state) {
+        state.markChanged();
+        state.enter();
+
+        Stack<Command> stack = state.getStack();
+
+        try {
+            while (true) {
+                CancellationException cancellation = state.getCancellation();
+                if (cancellation != null) {
+                    throw cancellation;
+                }
+
+                if (state.getStatus() == Status.SUSPENDED) {
+                    for (RuntimeListener l : listeners) {
+                        l.onSuspend(state);
+                    }
+                    break;
+                }
+
+                if (state.getStatus() == Status.WAITING) {
+                    state.exit();
+                    if (state.park()) {
+                        // the state can be re-submitted by a child at any moment,
+                        // no access to the state past this point
+                        return false;
+                    }
+
+                    // all children stopped before we had a chance to park
+                    state.enter();
+                    continue;
+                }
+
+                if (stack.isEmpty()) {
+                    // the evaluating thread owns the status of a running state
+                    state.setStatus(Status.DONE);
+                    break;
+                }
+
+                evalCommand(stack.peek(), state);
+            }
+        } catch (Throwable t) {
+            // interrupted commands fail with all sorts of errors
+            CancellationException cancellation = state.getCancellation();
+            if (cancellation != null) {
+                state.setLastError(cancellation);
+                state.clearEventRefs();
+            } else {
+                state.setLastError(t);
+            }
+
+            // after the error, see State#status. The evaluating thread owns
+            // the status, cancelling threads only finish the states which are not running
+            state.setStatus(Status.DONE);
+        }
+
+        state.exit();
+
+        if (state.getStatus() == Status.DONE) {
+            TimingWheel.Timeout deadline = state.getDeadlineTimeout();
+            if (deadline != null) {
+                deadline.cancel();
+                state.setDeadlineTimeout(null);
+            }
+
+            fireDone(state);
+        }
+
+        return true;
+    }
+
+    /**
+     * Notifies the listeners that the state is {@link Status#DONE}.
+     * The state is final already, so listener errors (e.g. journal failures)
+     * are added to the state's error instead. The parent's join or the caller
+     * see them as the state's failure.
+     */
+    private void fireDone(State state) {
+        for (RuntimeListener l : listeners) {
+            try {
+                l.onDone(state);
+            } catch (RuntimeException e) {
+                log.warn("fireDone ['{}'] -> listener error", state.getId(), e);
+
+                Throwable t = state.getLastError();
+                if (t == null) {
+                    state.setLastError(e);
+                } else if (t != e) {
+                    t.addSuppressed(e);
+                }
+            }
+        }
+    }
+
+    private void evalCommand(Command cmd, State state) {
+        if (listeners.length == 0) {
+            cmd.eval(ctx, state);
+        } else {
+            evalListened(cmd, state);
+        }
+    }
+
+    /**
+     * Evaluates the command and notifies the listeners which
+     * {@link RuntimeListener#getCommandSampleRate() sample} it.
+     */
+    private void evalListened(Command cmd, State state) {
+        int seq = state.nextCommandSeq();
+
+        long sampled = 0;
+        for (int i = 0; i < listeners.length; i++) {
+            int rate = sampleRates[i];
+            if (rate == 1 || Integer.remainderUnsigned(seq, rate) == 0) {
+                sampled |= 1L << i;
+                listeners[i].beforeCommand(cmd, state);
+            }
+        }
+
+        if (sampled == 0) {
+            cmd.eval(ctx, state);
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        Throwable error = null;
+        try {
+            cmd.eval(ctx, state);
+        } catch (Throwable t) {
+            error = t;
+            throw t;
+        } finally {
+            long endTime = System.nanoTime();
+            for (int i = 0; i < listeners.length; i++) {
+                if ((sampled & (1L << i)) != 0) {
+                    listeners[i].afterCommand(cmd, state, startTime, endTime, error);
+                }
+            }
+        }
+    }
+
+    private void spawn(State child, int maxRunningChildren) {
+        // fail early if the pool is unknown
+        ExecutorService executor = executorFor(child);
+
+        State parent = child.getParent();
+
+        // children spawned by a cancelled state are cancelled too
+        CancellationException cancellation = parent.getCancellation();
+        if (cancellation != null) {
+            child.cancel(cancellation);
+        }
+
+        if (child.getDeadline() != 0 && child.getDeadlineTimeout() == null) {
+            scheduleDeadline(child);
+        }
+
+        if (!parent.childStarted(child, maxRunningChildren)) {
+            // queued, will be submitted once one of the running siblings stops
+            return;
+        }
+
+        try {
+            submit(child, executor);
+        } catch (RuntimeException e) {
+            parent.childStopped();
+            throw e;
+        }
+    }
+
+    /**
+     * Schedules a (non-root) state for execution in its executor.
+     */
+    private void submit(State state, ExecutorService executor) {
+        long queuedTime = listeners.length > 0 ? System.nanoTime() : 0;
+        for (RuntimeListener l : listeners) {
+            l.onQueued(state);
+        }
+
+        Task task = new Task(this, state, queuedTime);
+        try {
+            if (executor instanceof ForkJoinPool) {
+                Task.submit(task, (ForkJoinPool) executor);
+            } else {
+                executor.execute(task);
+            }
+        } catch (RuntimeException e) {
+            task.discard();
+            for (RuntimeListener l : listeners) {
+                l.onRejected(state, queuedTime);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Called when a task fails outside of {@link #eval(State)}, e.g. due to a listener
+     * error or a rejected submission. The task's parent might never be notified,
+     * so the whole process is cancelled.
+     */
+    private void taskFailed(State state, Throwable t) {
+        log.error("run ['{}'] -> unexpected error, cancelling the process", state.getId(), t);
+
+        CancellationException error = new CancellationException("Task failed: " + state.getId());
+        error.initCause(t);
+
+        State root = state.getRoot();
+        cancelTree(root, error);
+    }
+
+    private void run(State state, long queuedTime) {
+        for (RuntimeListener l : listeners) {
+            l.onDequeued(state, queuedTime);
+        }
+
+        if (!eval(state)) {
+            // parked, the last running child is going to re-submit the state
+            return;
+        }
+
+        // the state is either DONE or SUSPENDED now, let the parent know
+        State parent = state.getParent();
+
+        JoinCondition condition = parent.getJoinCondition();
+        if (condition != null) {
+            try {
+                condition.childStopped(ctx, parent, state);
+            } catch (RuntimeException e) {
+                log.warn("run ['{}'] -> join condition error", state.getId(), e);
+            }
+        }
+
+        State next = parent.childStopped();
+        if (next != null && next.getParent() != null) {
+            // either a queued sibling or the parent which was parked
+            // waiting for its children. Parked roots are continued
+            // by the caller's thread.
+            submit(next, executorFor(next));
+        }
+    }
+
+    /**
+     * Evaluates a (non-root) state. Registered in the engine's and the process'
+     * {@link TaskGroup task groups} from the submission until the task completes.
+     * <p>
+     * A {@link ForkJoinTask}, so the tasks submitted by the workers of
+     * a {@link ForkJoinPool} go to the worker's own queue and can be
+     * {@link #helpChildren(State) executed} by their joining parent.
+     * Runs as a plain {@link Runnable} in other executors.
+     */
+    private static final class Task extends ForkJoinTask<Void> implements Runnable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Engine engine;
+        private final State state;
+        private final long queuedTime;
+        private final TaskGroup group;
+
+        private Task(Engine engine, State state, long queuedTime) {
+            this.engine = engine;
+            this.state = state;
+            this.queuedTime = queuedTime;
+            this.group = state.getRoot().tasks();
+
+            group.add(this);
+            engine.tasks.add(this);
+        }
+
+        @Override
+        public void run() {
+            quietlyInvoke();
+        }
+
+        @Override
+        protected boolean exec() {
+            try {
+                engine.run(state, queuedTime);
+            } catch (Throwable t) {
+                engine.taskFailed(state, t);
+            } finally {
+                unregister();
+            }
+            return true;
+        }
+
+        /**
+         * Cancels the task which wasn't submitted.
+         */
+        void discard() {
+            cancel(false);
+            unregister();
+        }
+
+        private void unregister() {
+            // the process' group last, the process can be returned to the caller right after
+            engine.tasks.remove(this);
+            group.remove(this);
+        }
+
+        @Override
+        public Void getRawResult() {
+            return null;
+        }
+
+        @Override
+        protected void setRawResult(Void value) {
+        }
+
+        /**
+         * Submits the task to the current worker's queue if the current thread
+         * is a worker of the pool.
+         */
+        static void submit(Task task, ForkJoinPool pool) {
+            Thread t = Thread.currentThread();
+            if (t instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) t).getPool() == pool) {
+                task.fork();
+            } else {
+                pool.execute((ForkJoinTask<?>) task);
+            }
+        }
+
+        /**
+         * Executes the parent's children which are still in the current worker's
+         * queue, in the caller's thread. The children are pushed in order, so
+         * the most recently forked task is either a child or the children
+         * were taken by other workers (or helped already).
+         */
+        static void helpChildren(State parent) {
+            while (parent.getCancellation() == null) {
+                ForkJoinTask<?> next = peekNextLocalTask();
+                if (!(next instanceof Task) || ((Task) next).state.getParent() != parent || !next.tryUnfork()) {
+                    return;
+                }
+
+                ((Task) next).quietlyInvoke();
+            }
+        }
+    }
+
+    private ExecutorService executorFor(State state) {
+        String pool = state.getPool();
+        if (pool == null) {
+            return executor;
+        }
+
+        ExecutorService e = pools.get(pool);
+        if (e == null) {
+            throw new IllegalStateException("Unknown executor pool: " + pool);
+        }
+        return e;
+    }
+
+    private boolean awaitChildren(State state) {
+        // cancelled states don't wait for their (also cancelled) children
+        CancellationException cancellation = state.getCancellation();
+        if (cancellation != null) {
+            throw cancellation;
+        }
+
+        if (nonBlockingJoin) {
+            if (state.prepareToPark()) {
+                return false;
+            }
+
+            for (RuntimeListener l : listeners) {
+                l.onJoin(state);
+            }
+
+            return true;
+        }
+
+        try {
+            if (Thread.currentThread() instanceof ForkJoinWorkerThread) {
+                // run the children which weren't taken by other workers yet,
+                // then let the pool compensate for the blocked worker
+                Task.helpChildren(state);
+                ForkJoinPool.managedBlock(new ChildrenBlocker(state));
+            } else {
+                state.awaitChildren();
+            }
+        } catch (InterruptedException e) {
+            cancellation = state.getCancellation();
+            if (cancellation != null) {
+                throw cancellation;
+            }
+
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for children of " + state.getId(), e);
+        }
+
+        cancellation = state.getCancellation();
+        if (cancellation != null) {
+            throw cancellation;
+        }
+
+        for (RuntimeListener l : listeners) {
+            l.onJoin(state);
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits for the children of a state in a {@link ForkJoinPool} worker.
+     */
+    private static final class ChildrenBlocker implements ForkJoinPool.ManagedBlocker {
+
+        private final State state;
+
+        private ChildrenBlocker(State state) {
+            this.state = state;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            state.awaitChildren();
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return !state.hasActiveChildren() || state.getCancellation() != null;
+        }
+    }
+
+    /**
+     * Resumes the targets and all their ancestors, except the root
+     * which is going to run in the caller's thread. Each state is woken once,
+     * even if it's shared by multiple targets.
+     * <p>
+     * Must be called under the root's execution lock with no tasks of the tree
+     * running. Nothing else changes the statuses then, so the plain writes are safe:
+     * the states are SUSPENDED or, when recovering, in any of the non-final statuses.
+     */
+    private void wakeDependencies(Collection<State> targets) {
+        Set<State> states = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (State t : targets) {
+            // collect the path to the root, stop at the already collected states
+            State s = t;
+            while (s.getParent() != null && states.add(s)) {
+                s = s.getParent();
+            }
+        }
+
+        // children must be registered in their parents before the parents
+        // start running, otherwise a parent's join could miss them
+        List<State> l = new ArrayList<>(states);
+        l.sort(Comparator.comparingInt(State::getDepth).reversed());
+
+        for (State s : l) {
+            s.setStatus(Status.READY);
+            spawn(s, 0);
+        }
+    }
+
+    private ReentrantLock storeLock(StateId rootId) {
+        long v = rootId.getValue();
+        int h = (int) (v ^ (v >>> 32));
+        h ^= h >>> 16;
+        return storeLocks[h & (storeLocks.length - 1)];
+    }
+
+    private void assertOpen() {
+        if (closed) {
+            throw new IllegalStateException("The engine is closed");
+        }
+    }
+
+    private static State find(State state, StateId id) {
+        if (state.getId().equals(id)) {
+            return state;
+        }
+
+        for (State c : state.snapshotChildren()) {
+            State s = find(c, id);
+            if (s != null) {
+                return s;
+            }
+        }
+
+        return null;
+    }
+
+    private static void collectSuspended(State state, List<State> result) {
+        if (state.getStatus() == Status.SUSPENDED) {
+            result.add(state);
+        }
+
+        for (State c : state.getChildren()) {
+            collectSuspended(c, result);
+        }
+    }
+
+    private static void collectRunning(State state, List<State> result) {
+        for (State c : state.getChildren()) {
+            Status s = c.getStatus();
+            if (s == Status.READY || s == Status.WAITING) {
+                result.add(c);
+            }
+            collectRunning(c, result);
+        }
+    }
+
+    /**
+     * Removes completed "threads" from the state.
+     */
+    private static void cleanup(State state) {
+        if (state.getStatus() != Status.DONE) {
+            return;
+        }
+
+        for (State c : new ArrayList<>(state.getChildren())) {
+            cleanup(c);
+
+            if (c.getStatus() == Status.DONE) {
+                state.removeChild(c);
+            }
+        }
+    }
+
+    /**
+     * Saves the process into the state store (if any) or removes it
+     * if the process is complete.
+     */
+    private void persist(State root) {
+        if (store == null) {
+            return;
+        }
+
+        try {
+            if (root.getStatus() == Status.DONE) {
+                store.remove(root.getId());
+                timerRoots.remove(root.getId());
+            } else {
+                store.save(root);
+                trackTimers(root);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Rethrows errors stored in the state.
+     */
+    private static void handleErrors(State state) {
+        Throwable t = state.getLastError();
+        if (t == null) {
+            return;
+        }
+
+        // avoid unnecessary wrapping
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+
+        throw new RuntimeException(t);
+    }
+
+    private class RuntimeContextImpl implements RuntimeContext {
+
+        @Override
+        public StateId nextStateId() {
+            return new StateId(idGenerator.nextId());
+        }
+
+        @Override
+        public void spawn(State child, int maxRunningChildren) {
+            for (RuntimeListener l : listeners) {
+                l.onFork(child.getParent(), child);
+            }
+            Engine.this.spawn(child, maxRunningChildren);
+        }
+
+        @Override
+        public void eval(Command cmd, State state) {
+            evalCommand(cmd, state);
+        }
+
+        @Override
+        public boolean awaitChildren(State state) {
+            return Engine.this.awaitChildren(state);
+        }
+
+        @Override
+        public void scheduleTimer(State state, String eventRef) {
+            Engine.this.scheduleTimer(state, eventRef);
+        }
+
+        @Override
+        public void cancel(State state, CancellationException error) {
+            cancelRunning(state, error);
+        }
+    }
+
+    public static class Builder {
+
+        private ExecutorService executor;
+        private Map<String, ExecutorService> pools;
+        private List<RuntimeListener> listeners;
+        private boolean nonBlockingJoin;
+        private boolean virtualThreads;
+        private int workStealingParallelism;
+        private StateStore store;
+        private long timerTick = 10;
+        private StateIdGenerator idGenerator;
+        private long shutdownTimeout = 30000;
+
+        public Builder withExecutor(ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Registers a named executor pool. Used to isolate different kinds of work,
+         * e.g. I/O-heavy branches from CPU-heavy ones.
+         *
+         * @see com.github.ibodrov.simpleflowengine.commands.Block#Block(
+         * com.github.ibodrov.simpleflowengine.commands.Block.Strategy, List, String, int)
+         */
+        public Builder withExecutor(String pool, ExecutorService executor) {
+            if (pools == null) {
+                pools = new HashMap<>();
+            }
+            pools.put(pool, executor);
+            return this;
+        }
+
+        public Builder withListener(RuntimeListener listener) {
+            if (listeners == null) {
+                listeners = new ArrayList<>();
+            }
+            listeners.add(listener);
+            return this;
+        }
+
+        /**
+         * Enables the continuation-style {@link com.github.ibodrov.simpleflowengine.commands.Join}:
+         * instead of blocking the executor's thread while the children are running
+         * the parent state is {@link Status#WAITING parked} and re-submitted
+         * by its last running child. Allows running deeply nested parallel blocks
+         * on a fixed-size thread pool.
+         */
+        public Builder withNonBlockingJoin(boolean nonBlockingJoin) {
+            this.nonBlockingJoin = nonBlockingJoin;
+            return this;
+        }
+
+        /**
+         * Runs each child "thread" on its own virtual thread instead of
+         * the default cached thread pool. Blocking commands (I/O, sleeps) and
+         * blocking {@link com.github.ibodrov.simpleflowengine.commands.Join joins}
+         * park the virtual thread without occupying a platform thread.
+         * Requires Java 21 or later at runtime.
+         * <p>
+         * Replaces the default executor, can't be combined with {@link #withExecutor(ExecutorService)}.
+         * Named pools are not affected.
+         */
+        public Builder withVirtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * Runs the child "threads" on a {@link ForkJoinPool} with the specified
+         * parallelism. Children forked by a worker go to the worker's own queue
+         * and a blocking {@link com.github.ibodrov.simpleflowengine.commands.Join join}
+         * executes its pending children in the joining thread before waiting for
+         * the ones taken by other workers. Nested parallel blocks run on a few
+         * threads with fewer hand-offs between them. Any {@link ForkJoinPool}
+         * {@link #withExecutor(ExecutorService) executor} is used the same way.
+         * <p>
+         * Replaces the default executor, can't be combined with {@link #withExecutor(ExecutorService)}
+         * or {@link #withVirtualThreads(boolean)}. Named pools are not affected.
+         *
+         * @param parallelism the pool's parallelism, {@code 0} - disabled.
+         */
+        public Builder withWorkStealing(int parallelism) {
+            if (parallelism < 0) {
+                throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+            }
+            this.workStealingParallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Saves processes into the specified store after each execution.
+         * The engine doesn't close the store.
+         *
+         * @see Engine#resume(String)
+         */
+        public Builder withStateStore(StateStore store) {
+            this.store = store;
+            return this;
+        }
+
+        /**
+         * Resolution of the {@link com.github.ibodrov.simpleflowengine.commands.SuspendUntil timers},
+         * in milliseconds. Default is 10ms.
+         */
+        public Builder withTimerTick(long timerTick) {
+            this.timerTick = timerTick;
+            return this;
+        }
+
+        /**
+         * Generator of the {@link StateId}s. By default all engines of the JVM share
+         * the {@link SnowflakeIdGenerator#getDefault() default generator}, engines
+         * of different JVMs which share states must use generators with different node IDs,
+         * e.g. set with the {@link SnowflakeIdGenerator#NODE_ID_PROPERTY} system property.
+         * Engines which persist their states (with a state store or a journal) log
+         * a warning if they use the default generator without a configured node ID.
+         */
+        public Builder withStateIdGenerator(StateIdGenerator idGenerator) {
+            this.idGenerator = idGenerator;
+            return this;
+        }
+
+        /**
+         * Max time {@link Engine#close()} waits for the running tasks before
+         * interrupting them. Default is 30 seconds.
+         */
+        public Builder withShutdownTimeout(long timeout, TimeUnit unit) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException("Invalid timeout: " + timeout);
+            }
+            this.shutdownTimeout = unit.toMillis(timeout);
+            return this;
+        }
+
+        public Engine build() {
+            if (virtualThreads) {
+                if (executor != null) {
+                    throw new IllegalStateException("Virtual threads can't be used with a custom executor");
+                }
+                executor = newVirtualThreadPerTaskExecutor();
+            }
+
+            if (workStealingParallelism > 0) {
+                if (executor != null) {
+                    throw new IllegalStateException("Work stealing can't be used with a custom executor or virtual threads");
+                }
+                executor = new ForkJoinPool(workStealingParallelism);
+            }
+
+            if (executor == null) {
+                executor = Executors.newCachedThreadPool();
+            }
+
+            if (listeners == null) {
+                listeners = Collections.emptyList();
+            }
+
+            if (pools == null) {
+                pools = Collections.emptyMap();
+            }
+
+            if (idGenerator == null) {
+                idGenerator = SnowflakeIdGenerator.getDefault();
+
+                boolean persistent = store != null || listeners.stream().anyMatch(l -> l instanceof JournalListener);
+                if (persistent && !SnowflakeIdGenerator.isDefaultNodeIdSet()) {
+                    // IDs of the persisted states can collide with the ones of other nodes
+                    log.warn("build -> the default state ID generator (node ID {}) is used, set the '{}' " +
+                                    "system property or use a generator with a unique node ID",
+                            SnowflakeIdGenerator.getDefault().getNodeId(), SnowflakeIdGenerator.NODE_ID_PROPERTY);
+                }
+            }
+
+            return new Engine(executor, pools, listeners, nonBlockingJoin, store, timerTick, idGenerator,
+                    shutdownTimeout);
+        }
+
+        /**
+         * Looked up reflectively to keep the Java 8 baseline.
+         */
+        private static ExecutorService newVirtualThreadPerTaskExecutor() {
+            Method m;
+            try {
+                m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException("Virtual threads are not supported by the current JVM: " +
+                        System.getProperty("java.version"));
+            }
+
+            try {
+                return (ExecutorService) m.invoke(null);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Can't create a virtual thread executor", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.github.ibodrov.simpleflowengine;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+/**
+ * Notified each time a child "thread" of a state stops, in the child's
+ * thread, before the state is notified. Allows
+ * {@link com.github.ibodrov.simpleflowengine.commands.Join joins} to react to
+ * the results of individual children without waiting for the rest.
+ *
+ * @see State#setJoinCondition(JoinCondition)
+ */
+public interface JoinCondition {
+
+    /**
+     * @param state the parent state.
+     * @param child the child which became {@link State.Status#DONE} or {@link State.Status#SUSPENDED}.
+     */
+    void childStopped(RuntimeContext ctx, State state, State child);
+}
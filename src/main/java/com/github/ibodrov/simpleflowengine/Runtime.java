@@ -20,37 +20,32 @@ package com.github.ibodrov.simpleflowengine;
  * =====
  */
 
-import com.github.ibodrov.simpleflowengine.State.Status;
 import com.github.ibodrov.simpleflowengine.commands.Command;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.github.ibodrov.simpleflowengine.program.Program;
+import com.github.ibodrov.simpleflowengine.store.StateStore;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Executes flows consisting of series of {@link Command} elements.
  * Shouldn't be reused between executions.
+ * <p>
+ * A single-use wrapper around {@link Engine}. Use the engine directly
+ * to run multiple processes on the same executor.
  */
 public class Runtime {
 
-    private static final Logger log = LoggerFactory.getLogger(Runtime.class);
-
-    private final ExecutorService executor;
-    private final List<RuntimeListener> listeners;
-    private final RuntimeContext ctx = new RuntimeContextImpl();
+    private final Engine engine;
 
     private boolean closed = false;
 
-    private Runtime(ExecutorService executor, List<RuntimeListener> listeners) {
-        this.executor = executor;
-        this.listeners = listeners;
+    private Runtime(Engine engine) {
+        this.engine = engine;
     }
 
     /**
@@ -60,22 +55,25 @@ public class Runtime {
      * saved and used later to {@link #resume(State, String)} the process.
      */
     public State start(Command cmd) throws Exception {
-        log.info("start -> starting...");
-
-        return once(() -> {
-            // create the initial state
-            State root = new State(ctx.nextStateId());
-            root.getStack().push(cmd);
-
-            // execute the root "thread"
-            eval(root);
+        return once(() -> engine.start(cmd));
+    }
 
-            handleErrors(root);
-            cleanup(root);
+    /**
+     * Starts a new process using the pre-compiled program.
+     *
+     * @see Engine#start(Program)
+     */
+    public State start(Program program) throws Exception {
+        return once(() -> engine.start(program));
+    }
 
-            log.info("start -> done");
-            return root;
-        });
+    /**
+     * Starts a new process with a deadline.
+     *
+     * @see Engine#start(Command, long, TimeUnit)
+     */
+    public State start(Command cmd, long timeout, TimeUnit unit) throws Exception {
+        return once(() -> engine.start(cmd, timeout, unit));
     }
 
     /**
@@ -84,76 +82,43 @@ public class Runtime {
      * @return the updated state object.
      */
     public State resume(State root, String eventRef) throws Exception {
-        log.info("resume ['{}'] -> starting...", eventRef);
-
-        return once(() -> {
-            // find whoever owns the event
-            State owner = findOwner(root, eventRef);
-            if (owner == null) {
-                throw new IllegalStateException("EventRef not found: " + eventRef);
-            }
-
-            owner.getEventRefs().remove(eventRef);
-
-            // wake the tree starting from the event's owner
-            // but skip the root as it's going to run in the caller's thread
-            wakeDependencies(root, owner);
-
-            // execute the root "thread" in the caller's thread
-            root.setStatus(Status.READY);
-            eval(root);
-
-            handleErrors(root);
-            cleanup(root);
-
-            log.info("resume ['{}'] -> done", eventRef);
-            return root;
-        });
+        return once(() -> engine.resume(root, eventRef));
     }
 
-    private void eval(State state) {
-        Stack<Command> stack = state.getStack();
-
-        try {
-            while (true) {
-                if (state.getStatus() == Status.SUSPENDED) {
-                    break;
-                }
-
-                if (stack.isEmpty()) {
-                    state.setStatus(Status.DONE);
-                    break;
-                }
-
-                Command cmd = stack.peek();
-
-                listeners.forEach(l -> l.beforeCommand(cmd));
-                cmd.eval(ctx, state);
-                listeners.forEach(l -> l.afterCommand(cmd));
-            }
-        } catch (Throwable t) {
-            state.setStatus(Status.DONE);
-            state.setLastError(t);
-        }
+    /**
+     * Resumes a stored process from a specific point ("event").
+     *
+     * @see Engine#resume(String)
+     */
+    public State resume(String eventRef) throws Exception {
+        return once(() -> engine.resume(eventRef));
     }
 
-    private void spawn(State state) {
-        executor.submit(() -> eval(state));
+    /**
+     * Cancels a state of the process and all its children.
+     *
+     * @see Engine#cancel(State, StateId)
+     */
+    public State cancel(State root, StateId id) throws Exception {
+        return once(() -> engine.cancel(root, id));
     }
 
     /**
-     * Resumes all "threads" of the target state's tree.
+     * Continues a process restored after a crash.
+     *
+     * @see Engine#recover(State)
      */
-    private void wakeDependencies(State root, State target) {
-        target.setStatus(Status.READY);
-        spawn(target);
-
-        State parent = findParent(root, target);
-        if (parent == root || parent == null) {
-            return;
-        }
+    public State recover(State root) throws Exception {
+        return once(() -> engine.recover(root));
+    }
 
-        wakeDependencies(root, parent);
+    /**
+     * Resumes multiple processes, each from one or more events.
+     *
+     * @see Engine#resumeAll(Map)
+     */
+    public List<State> resumeAll(Map<State, ? extends Collection<String>> events) throws Exception {
+        return once(() -> engine.resumeAll(events));
     }
 
     private synchronized <T> T once(Callable<T> r) throws Exception {
@@ -162,7 +127,7 @@ public class Runtime {
         try {
             return r.call();
         } finally {
-            executor.shutdown();
+            engine.close();
             closed = true;
         }
     }
@@ -173,121 +138,78 @@ public class Runtime {
         }
     }
 
-    /**
-     * Removes completed "threads" from the state.
-     */
-    private static void cleanup(State state) {
-        if (state.getStatus() != Status.DONE) {
-            return;
-        }
-
-        for (Iterator<State> i = state.getChildren().iterator(); i.hasNext(); ) {
-            State c = i.next();
-
-            if (c.getStatus() == Status.DONE) {
-                i.remove();
-            }
-
-            cleanup(c);
-        }
-    }
+    public static class Builder {
 
-    /**
-     * Returns a parent state object of the specified child.
-     */
-    private static State findParent(State root, State child) {
-        if (root.getChildren().contains(child)) {
-            return root;
-        }
+        private final Engine.Builder engine = new Engine.Builder();
 
-        for (State c : root.getChildren()) {
-            State s = findParent(c, child);
-            if (s != null) {
-                return s;
-            }
+        public Builder withExecutor(ExecutorService executor) {
+            engine.withExecutor(executor);
+            return this;
         }
 
-        return null;
-    }
-
-    /**
-     * Returns a state object which owns the specified {@code eventRef}.
-     */
-    private static State findOwner(State root, String eventRef) {
-        if (root.getEventRefs().contains(eventRef)) {
-            return root;
+        /**
+         * @see Engine.Builder#withExecutor(String, ExecutorService)
+         */
+        public Builder withExecutor(String pool, ExecutorService executor) {
+            engine.withExecutor(pool, executor);
+            return this;
         }
 
-        for (State c : root.getChildren()) {
-            State t = findOwner(c, eventRef);
-            if (t != null) {
-                return t;
-            }
+        public Builder withListener(RuntimeListener listener) {
+            engine.withListener(listener);
+            return this;
         }
 
-        return null;
-    }
-
-    /**
-     * Rethrows errors stored in the state.
-     */
-    private static void handleErrors(State state) {
-        Throwable t = state.getLastError();
-        if (t == null) {
-            return;
+        /**
+         * @see Engine.Builder#withNonBlockingJoin(boolean)
+         */
+        public Builder withNonBlockingJoin(boolean nonBlockingJoin) {
+            engine.withNonBlockingJoin(nonBlockingJoin);
+            return this;
         }
 
-        // avoid unnecessary wrapping
-        if (t instanceof RuntimeException) {
-            throw (RuntimeException) t;
+        /**
+         * @see Engine.Builder#withVirtualThreads(boolean)
+         */
+        public Builder withVirtualThreads(boolean virtualThreads) {
+            engine.withVirtualThreads(virtualThreads);
+            return this;
         }
 
-        throw new RuntimeException(t);
-    }
-
-    private class RuntimeContextImpl implements RuntimeContext {
-
-        private final AtomicLong stateIdSeq = new AtomicLong(System.currentTimeMillis());
-
-        @Override
-        public StateId nextStateId() {
-            return new StateId(stateIdSeq.getAndIncrement());
+        /**
+         * @see Engine.Builder#withWorkStealing(int)
+         */
+        public Builder withWorkStealing(int parallelism) {
+            engine.withWorkStealing(parallelism);
+            return this;
         }
 
-        @Override
-        public void spawn(State state) {
-            Runtime.this.spawn(state);
+        /**
+         * @see Engine.Builder#withStateStore(StateStore)
+         */
+        public Builder withStateStore(StateStore store) {
+            engine.withStateStore(store);
+            return this;
         }
-    }
-
-    public static class Builder {
-
-        private ExecutorService executor;
-        private List<RuntimeListener> listeners;
 
-        public Builder withExecutor(ExecutorService executor) {
-            this.executor = executor;
+        /**
+         * @see Engine.Builder#withStateIdGenerator(StateIdGenerator)
+         */
+        public Builder withStateIdGenerator(StateIdGenerator idGenerator) {
+            engine.withStateIdGenerator(idGenerator);
             return this;
         }
 
-        public Builder withListener(RuntimeListener listener) {
-            if (listeners == null) {
-                listeners = new ArrayList<>();
-            }
-            listeners.add(listener);
+        /**
+         * @see Engine.Builder#withShutdownTimeout(long, TimeUnit)
+         */
+        public Builder withShutdownTimeout(long timeout, TimeUnit unit) {
+            engine.withShutdownTimeout(timeout, unit);
             return this;
         }
 
         public Runtime build() {
-            if (executor == null) {
-                executor = Executors.newCachedThreadPool();
-            }
-
-            if (listeners == null) {
-                listeners = Collections.emptyList();
-            }
-
-            return new Runtime(executor, listeners);
+            return new Runtime(engine.build());
         }
     }
 }
@@ -20,6 +20,10 @@ package com.github.ibodrov.simpleflowengine;
  * =====
  */
 
+import com.github.ibodrov.simpleflowengine.commands.Command;
+
+import java.util.concurrent.CancellationException;
+
 /**
  * Provides access to the runtime tools.
  */
@@ -32,6 +36,53 @@ public interface RuntimeContext {
 
     /**
      * Starts a new thread using the specified state.
+     * The state must be {@link State#addChild(State) added} to its parent first.
+     */
+    default void spawn(State child) {
+        spawn(child, 0);
+    }
+
+    /**
+     * Starts a new thread using the specified state on the state's
+     * {@link State#getPool() executor pool}.
+     * The state must be {@link State#addChild(State) added} to its parent first.
+     *
+     * @param maxRunningChildren max number of the parent's children running
+     *                           at the same time. Children spawned beyond the limit
+     *                           are queued and started as the running ones stop.
+     *                           {@code 0} - unlimited.
+     */
+    void spawn(State child, int maxRunningChildren);
+
+    /**
+     * Evaluates the command in the current thread, the same way the engine
+     * evaluates the commands it takes from the stack (i.e. notifying the listeners).
+     * The command must be on top of the state's stack.
+     */
+    void eval(Command cmd, State state);
+
+    /**
+     * Waits for all running children of the specified state to
+     * complete or suspend.
+     *
+     * @return {@code false} if the state was {@link State.Status#WAITING parked}
+     * instead of waiting. In this case the calling command should return
+     * immediately, it will be re-evaluated once the children stop.
+     */
+    boolean awaitChildren(State state);
+
+    /**
+     * Schedules the {@link State#addTimer(String, long) timer event} of
+     * the specified state. The engine resumes the process when the deadline comes,
+     * unless the event is resumed or removed before that.
+     */
+    void scheduleTimer(State state, String eventRef);
+
+    /**
+     * Cancels the state and its children, e.g. the branches which are no longer
+     * needed. Running states are interrupted and finish on their own,
+     * stopped ({@link State.Status#SUSPENDED suspended}) states are finished
+     * right away. The states become {@link State.Status#DONE} with the specified error.
      */
-    void spawn(State child);
+    void cancel(State state, CancellationException error);
 }
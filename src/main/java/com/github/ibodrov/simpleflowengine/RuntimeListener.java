@@ -22,15 +22,132 @@ package com.github.ibodrov.simpleflowengine;
 
 import com.github.ibodrov.simpleflowengine.commands.Command;
 
+/**
+ * Receives notifications about the engine's activity.
+ * <p>
+ * All methods have empty default implementations, so listeners implement
+ * only the events they're interested in. Methods are called from
+ * the executor's threads and must be thread-safe.
+ * <p>
+ * Timestamps are values of {@link System#nanoTime()}.
+ */
 public interface RuntimeListener {
 
+    /**
+     * Allows the listener to receive only a sample of the command events
+     * ({@link #beforeCommand(Command, State)} and {@link #afterCommand(Command, State, long, long, Throwable)}):
+     * every Nth command of each state. Useful for tracing in production.
+     * Read once, when the engine is created.
+     *
+     * @return {@code 1} to receive all commands (the default), {@code N} to
+     * receive every Nth command.
+     */
+    default int getCommandSampleRate() {
+        return 1;
+    }
+
     /**
      * Fired before execution of a command.
      */
-    void beforeCommand(Command cmd);
+    default void beforeCommand(Command cmd) {
+    }
+
+    /**
+     * Fired after successful execution of a command.
+     */
+    default void afterCommand(Command cmd) {
+    }
+
+    /**
+     * Fired before execution of a command.
+     * By default delegates to {@link #beforeCommand(Command)}.
+     *
+     * @param state the state (the "thread") which executes the command
+     */
+    default void beforeCommand(Command cmd, State state) {
+        beforeCommand(cmd);
+    }
+
+    /**
+     * Fired after execution of a command, including the failed ones.
+     * By default delegates to {@link #afterCommand(Command)} if the command succeeded.
+     *
+     * @param state     the state (the "thread") which executed the command
+     * @param startTime when the command's execution started
+     * @param endTime   when the command's execution ended
+     * @param error     the command's error or {@code null} if the command succeeded
+     */
+    default void afterCommand(Command cmd, State state, long startTime, long endTime, Throwable error) {
+        if (error == null) {
+            afterCommand(cmd);
+        }
+    }
+
+    /**
+     * Fired when a new process is started.
+     */
+    default void onStart(State root) {
+    }
+
+    /**
+     * Fired when a process is resumed, before the event's owner is scheduled.
+     *
+     * @param owner the state which owned the event, use {@link State#getRoot()}
+     *              to get the process' root
+     */
+    default void onResume(State owner, String eventRef) {
+    }
+
+    /**
+     * Fired when a new child "thread" is forked.
+     */
+    default void onFork(State parent, State child) {
+    }
+
+    /**
+     * Fired when all running children of the state stopped and
+     * the state continues its execution.
+     */
+    default void onJoin(State state) {
+    }
+
+    /**
+     * Fired when a state gets {@link State.Status#SUSPENDED suspended}.
+     */
+    default void onSuspend(State state) {
+    }
+
+    /**
+     * Fired when a state becomes {@link State.Status#DONE}, successfully
+     * or with an {@link State#getLastError() error}. The state stays {@code DONE}
+     * if this method throws, the error becomes the state's error (or is added
+     * to the existing one as a suppressed exception).
+     */
+    default void onDone(State state) {
+    }
+
+    /**
+     * Fired when a state is submitted to its executor.
+     */
+    default void onQueued(State state) {
+    }
+
+    /**
+     * Fired when a submitted state is picked up by the executor's thread.
+     *
+     * @param queuedTime when the state was submitted
+     */
+    default void onDequeued(State state, long queuedTime) {
+    }
 
     /**
-     * Fired after execution of a command.
+     * Fired when a state couldn't be submitted to its executor after
+     * {@link #onQueued(State)}, e.g. because the executor rejected it.
+     * By default delegates to {@link #onDequeued(State, long)}.
+     *
+     * @param queuedTime when the state was submitted
      */
-    void afterCommand(Command cmd);
+    default void onRejected(State state, long queuedTime) {
+        onDequeued(state, queuedTime);
+    }
 }
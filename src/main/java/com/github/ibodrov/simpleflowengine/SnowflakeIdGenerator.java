@@ -0,0 +1,207 @@
+package com.github.ibodrov.simpleflowengine;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Generates 63-bit IDs consisting of a timestamp, a node ID and a sequence number:
+ * <pre>
+ * | 41 bits - milliseconds since {@link #EPOCH} | 10 bits - node ID | 12 bits - sequence |
+ * </pre>
+ * IDs generated by different nodes never collide as long as each node
+ * (a JVM or an engine with its own generator) uses a unique node ID.
+ * <p>
+ * The sequence numbers are reserved in small blocks. The blocks are shared
+ * by the threads through a fixed number of stripes, so the number of
+ * partially used blocks doesn't grow with the number of threads (e.g. when
+ * IDs are generated by many short-lived virtual threads). The timestamp
+ * of an ID is the time its block was reserved. When more than
+ * 4096 IDs per millisecond are requested the generator runs ahead of
+ * the clock rather than waiting for it. IDs of a node generated after
+ * a restart can collide with IDs generated before the restart only if
+ * the previous run was ahead of the clock at that moment.
+ */
+public class SnowflakeIdGenerator implements StateIdGenerator {
+
+    /**
+     * 2019-01-01T00:00:00Z
+     */
+    public static final long EPOCH = 1546300800000L;
+
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    public static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+
+    /**
+     * Number of sequence numbers reserved at once. Divides the number of
+     * sequence numbers per millisecond, so the blocks are aligned to milliseconds.
+     */
+    private static final int BLOCK_SIZE = 64;
+
+    /**
+     * Distance between the stripes in {@link #stripes}, so the stripes
+     * don't share cache lines.
+     */
+    private static final int STRIPE_PADDING = 8;
+
+    /**
+     * System property with the node ID of the {@link #getDefault() default generator}.
+     */
+    public static final String NODE_ID_PROPERTY = "simpleflowengine.nodeId";
+
+    private static final SnowflakeIdGenerator DEFAULT = new SnowflakeIdGenerator(defaultNodeId());
+
+    /**
+     * @return the generator shared by all engines of the JVM which don't
+     * have their own generator. Uses the node ID from the {@link #NODE_ID_PROPERTY}
+     * system property, {@code 0} if the property is not set.
+     */
+    public static SnowflakeIdGenerator getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return {@code true} if the node ID of the {@link #getDefault() default generator}
+     * is set explicitly.
+     */
+    public static boolean isDefaultNodeIdSet() {
+        return System.getProperty(NODE_ID_PROPERTY) != null;
+    }
+
+    private final int nodeId;
+
+    /**
+     * The end of the last reserved block: the timestamp and the sequence number
+     * ({@code (millis - EPOCH) << SEQUENCE_BITS | sequence}).
+     */
+    private final AtomicLong reserved = new AtomicLong();
+
+    /**
+     * The current blocks: the next unused value of {@link #reserved}
+     * or {@code 0} if the stripe's block is exhausted.
+     */
+    private final AtomicLongArray stripes;
+    private final int stripeMask;
+
+    public SnowflakeIdGenerator(int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Invalid nodeId: " + nodeId + " (0-" + MAX_NODE_ID + ")");
+        }
+        this.nodeId = nodeId;
+
+        int n = Integer.highestOneBit(Math.max(1, java.lang.Runtime.getRuntime().availableProcessors() - 1) << 1);
+        this.stripes = new AtomicLongArray(n * STRIPE_PADDING);
+        this.stripeMask = n - 1;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public long nextId() {
+        long t = next(stripe());
+        return (t >>> SEQUENCE_BITS) << (NODE_BITS + SEQUENCE_BITS)
+                | (long) nodeId << SEQUENCE_BITS
+                | t & SEQUENCE_MASK;
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32));
+        h ^= h >>> 16;
+        return (h & stripeMask) * STRIPE_PADDING;
+    }
+
+    /**
+     * Takes the next value of the stripe's block, reserving a new block
+     * if the current one is exhausted. The values taken from a stripe
+     * are always increasing.
+     */
+    private long next(int stripe) {
+        while (true) {
+            long v = stripes.get(stripe);
+            if (v == 0) {
+                // if another thread installs its block first, the reserved block is skipped,
+                // so the stripe's values keep increasing
+                long start = reserve();
+                if (stripes.compareAndSet(stripe, 0, start + 1)) {
+                    return start;
+                }
+                continue;
+            }
+
+            long n = v + 1;
+            if ((n & (BLOCK_SIZE - 1)) == 0) {
+                n = 0;
+            }
+
+            if (stripes.compareAndSet(stripe, v, n)) {
+                return v;
+            }
+        }
+    }
+
+    /**
+     * @return the start of a new block.
+     */
+    private long reserve() {
+        long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+        while (true) {
+            long last = reserved.get();
+            long start = Math.max(last, now);
+            if (reserved.compareAndSet(last, start + BLOCK_SIZE)) {
+                return start;
+            }
+        }
+    }
+
+    private static int defaultNodeId() {
+        String s = System.getProperty(NODE_ID_PROPERTY);
+        if (s == null) {
+            return 0;
+        }
+
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + NODE_ID_PROPERTY + ": " + s);
+        }
+    }
+
+    /**
+     * @return the time (milliseconds since the epoch) encoded in the ID.
+     */
+    public static long timestampOf(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+    }
+
+    /**
+     * @return the node ID encoded in the ID.
+     */
+    public static int nodeIdOf(long id) {
+        return (int) (id >>> SEQUENCE_BITS) & MAX_NODE_ID;
+    }
+}
@@ -20,32 +20,126 @@ package com.github.ibodrov.simpleflowengine;
  * =====
  */
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * Simple stack interface.
+ * <p>
+ * Backed by a growable array. Serialized as a flat list of items, starting
+ * from the bottom of the stack. The format is not compatible with the stacks
+ * serialized by the previous, {@code LinkedList}-based versions.
  */
 public class Stack<T extends Serializable> implements Serializable {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
-    private final Deque<T> items = new LinkedList<>();
+    private static final int DEFAULT_CAPACITY = 8;
+
+    private transient Object[] items;
+    private transient int size;
+
+    public Stack() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public Stack(int initialCapacity) {
+        this.items = new Object[Math.max(initialCapacity, 1)];
+    }
 
     public void push(T item) {
-        items.push(item);
+        ensureCapacity(size + 1);
+        items[size++] = item;
+    }
+
+    /**
+     * Pushes all items of the list onto the stack in the reversed order,
+     * so the first item of the list ends up on the top of the stack.
+     */
+    public void pushAll(List<? extends T> l) {
+        int n = l.size();
+        ensureCapacity(size + n);
+
+        for (int i = n - 1; i >= 0; i--) {
+            items[size++] = l.get(i);
+        }
     }
 
+    @SuppressWarnings("unchecked")
     public T peek() {
-        return items.peek();
+        if (size == 0) {
+            return null;
+        }
+        return (T) items[size - 1];
     }
 
+    @SuppressWarnings("unchecked")
     public T pop() {
-        return items.pop();
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+
+        T item = (T) items[--size];
+        items[size] = null;
+        return item;
     }
 
     public boolean isEmpty() {
-        return items.isEmpty();
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a copy of the stack's items starting from the bottom
+     * of the stack, i.e. in the order they were pushed.
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> toList() {
+        List<T> l = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            l.add((T) items[i]);
+        }
+        return l;
+    }
+
+    private void ensureCapacity(int n) {
+        if (n <= items.length) {
+            return;
+        }
+
+        items = Arrays.copyOf(items, Math.max(items.length * 2, n));
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeObject(items[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        int n = in.readInt();
+        if (n < 0) {
+            throw new IOException("Invalid stack size: " + n);
+        }
+
+        items = new Object[Math.max(n, DEFAULT_CAPACITY)];
+        for (int i = 0; i < n; i++) {
+            items[i] = in.readObject();
+        }
+        size = n;
     }
 }
@@ -21,29 +21,174 @@ package com.github.ibodrov.simpleflowengine;
  */
 
 import com.github.ibodrov.simpleflowengine.commands.Command;
+import com.github.ibodrov.simpleflowengine.timer.TimingWheel;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Encapsulates all state of the thread (process) and its children.
  * Can be serialized and used to restore the process state later.
+ * <p>
+ * The status, the last error and the children can be accessed by any thread,
+ * e.g. by a parent joining its children while they are running. The stack and
+ * the events belong to the thread evaluating the state.
+ * <p>
+ * The serialized form is not compatible with the states serialized by
+ * the previous versions, which kept the children in a list.
  */
 public class State implements Serializable {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
+
+    private static final AtomicReferenceFieldUpdater<State, Status> STATUS =
+            AtomicReferenceFieldUpdater.newUpdater(State.class, Status.class, "status");
+
+    private static final AtomicReferenceFieldUpdater<State, Throwable> LAST_ERROR =
+            AtomicReferenceFieldUpdater.newUpdater(State.class, Throwable.class, "lastError");
 
     private final StateId id;
     private final Stack<Command> stack = new Stack<>();
     private final Set<String> eventRefs = new HashSet<>();
-    private final Set<State> children = new HashSet<>();
 
-    private Status status = Status.READY;
-    private Throwable lastError;
+    /**
+     * Child states by their IDs. Children are added by the thread evaluating
+     * the state while the other children are running and reading the collection.
+     */
+    private final Map<StateId, State> children = new ConcurrentHashMap<>();
+
+    /**
+     * Written before the {@link Status#DONE} status, so the threads which
+     * see a completed state see its error too.
+     */
+    private volatile Status status = Status.READY;
+    private volatile Throwable lastError;
+
+    /**
+     * Name of the executor pool the state runs on, {@code null} for the default pool.
+     */
+    private String pool;
+
+    /**
+     * Deadlines of the timer events: eventRef to the deadline (milliseconds since the epoch).
+     * {@code null} if the state has no timers.
+     */
+    private Map<String, Long> timers;
+
+    /**
+     * The time (milliseconds since the epoch) after which the state and its children
+     * are cancelled, {@code 0} if there's no deadline.
+     */
+    private long deadline;
+
+    /**
+     * The state which spawned this one. Restored after deserialization.
+     */
+    private transient State parent;
+
+    /**
+     * Index of all events of the tree: eventRef to the owner state.
+     * Maintained only by root states, rebuilt on first access after deserialization.
+     */
+    private transient volatile Map<String, State> eventIndex;
+
+    /**
+     * Changes made to the tree since the last {@link #takeDelta()}.
+     * Maintained only by root states, {@code null} if the changes are not tracked.
+     */
+    private transient volatile Changes changes;
+
+    /**
+     * Guards the coordination of the state's children. A {@link ReentrantLock}
+     * rather than the object's monitor, so virtual threads waiting for
+     * their children are unmounted instead of pinning their carrier threads.
+     */
+    private transient ReentrantLock lock;
+    private transient Condition childrenStopped;
+
+    /**
+     * Number of child "threads" which are currently running.
+     * Guarded by {@link #lock}.
+     */
+    private transient int activeChildren;
+
+    /**
+     * {@code true} if the state is {@link Status#WAITING} and no thread
+     * is evaluating it. Guarded by {@link #lock}.
+     */
+    private transient boolean parked;
+
+    /**
+     * Spawned children waiting for a free slot, see {@link #childStarted(State, int)}.
+     * Guarded by {@link #lock}.
+     */
+    private transient Deque<State> queuedChildren;
+
+    /**
+     * Number of commands evaluated since the state was created or loaded.
+     * Used to sample the commands for listeners. Accessed only by the thread
+     * evaluating the state.
+     */
+    private transient int commandSeq;
+
+    /**
+     * Scheduled timeouts of the {@link #timers}, see {@link #setTimeout(String, TimingWheel.Timeout)}.
+     */
+    private transient Map<String, TimingWheel.Timeout> timeouts;
+
+    /**
+     * Scheduled cancellation at the {@link #deadline}.
+     */
+    private transient TimingWheel.Timeout deadlineTimeout;
+
+    /**
+     * Set when the state is {@link #cancel(CancellationException) cancelled}.
+     */
+    private transient volatile CancellationException cancellation;
+
+    /**
+     * Condition of the {@link com.github.ibodrov.simpleflowengine.commands.Join join}
+     * which is waiting for the state's children.
+     */
+    private transient volatile JoinCondition joinCondition;
+
+    /**
+     * The thread which is currently evaluating the state.
+     * Interrupted when the state is cancelled.
+     */
+    private transient volatile Thread runner;
+
+    /**
+     * Serializes the executions of the tree. Maintained only by root states,
+     * created on first access.
+     */
+    private transient volatile ReentrantLock executionLock;
+
+    /**
+     * Tasks of the tree which are queued or running in the executors.
+     * Maintained only by root states, created on first access.
+     */
+    private transient volatile TaskGroup tasks;
 
     public State(StateId id) {
         this.id = id;
+        initLock();
     }
 
     public StateId getId() {
@@ -58,16 +203,276 @@ public class State implements Serializable {
         return status;
     }
 
+    /**
+     * Changes the status unconditionally. Only for the thread which owns the status:
+     * the thread evaluating the state, or a thread holding the root's
+     * {@link Engine#withExecutionLock(State, java.util.function.Function) execution lock}
+     * while the tree is not running.
+     * Use {@link #compareAndSetStatus(Status, Status)} for the states which
+     * multiple threads can complete.
+     */
     public void setStatus(Status status) {
         this.status = status;
     }
 
-    public Set<State> getChildren() {
-        return children;
+    /**
+     * Atomically changes the status if the current status is the expected one.
+     *
+     * @return {@code true} if the status was changed.
+     */
+    public boolean compareAndSetStatus(Status expected, Status status) {
+        return STATUS.compareAndSet(this, expected, status);
+    }
+
+    public String getPool() {
+        return pool;
+    }
+
+    public void setPool(String pool) {
+        this.pool = pool;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @param deadline milliseconds since the epoch, {@code 0} - no deadline.
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return the cancellation error if the state was cancelled, {@code null} otherwise.
+     */
+    public CancellationException getCancellation() {
+        return cancellation;
+    }
+
+    /**
+     * @return the parent state or {@code null} if the state is a root.
+     */
+    public State getParent() {
+        return parent;
+    }
+
+    /**
+     * @return number of ancestors of the state, {@code 0} for the root.
+     */
+    public int getDepth() {
+        int depth = 0;
+        for (State s = parent; s != null; s = s.parent) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * @return the root state of the tree.
+     */
+    public State getRoot() {
+        State s = this;
+        while (s.parent != null) {
+            s = s.parent;
+        }
+        return s;
+    }
+
+    /**
+     * @return an unmodifiable view of the children. Can be iterated while new children
+     * are being added. Use {@link #addChild(State)} and {@link #removeChild(State)}
+     * to modify the children, so the parent pointers and the event index stay consistent.
+     */
+    public Collection<State> getChildren() {
+        return Collections.unmodifiableCollection(children.values());
+    }
+
+    /**
+     * @return the child with the specified ID or {@code null} if there's no such child.
+     */
+    public State getChild(StateId id) {
+        return children.get(id);
+    }
+
+    /**
+     * @param id value of the child's {@link StateId ID}
+     * @see #getChild(StateId)
+     */
+    public State getChild(long id) {
+        return children.get(new StateId(id));
+    }
+
+    public void addChild(State child) {
+        if (child.parent != null) {
+            throw new IllegalStateException("State " + child.id + " already has a parent: " + child.parent.id);
+        }
+
+        child.parent = this;
+        child.eventIndex = null;
+        child.changes = null;
+        if (children.putIfAbsent(child.id, child) != null) {
+            child.parent = null;
+            throw new IllegalStateException("Duplicate child ID: " + child.id);
+        }
+
+        Map<String, State> idx = eventIndex();
+        index(child, idx);
+
+        Changes c = getRoot().changes;
+        if (c != null) {
+            c.added(child);
+        }
+    }
+
+    public void removeChild(State child) {
+        if (!children.remove(child.id, child)) {
+            return;
+        }
+
+        Map<String, State> idx = eventIndex();
+        unindex(child, idx);
+
+        Changes c = getRoot().changes;
+        if (c != null) {
+            c.removed(child);
+        }
+
+        child.parent = null;
     }
 
+    /**
+     * @return an unmodifiable view of the state's events. Use {@link #addEventRef(String)}
+     * and {@link #removeEventRef(String)} to modify the events, so the event index stays consistent.
+     */
     public Set<String> getEventRefs() {
-        return eventRefs;
+        return Collections.unmodifiableSet(eventRefs);
+    }
+
+    public void addEventRef(String eventRef) {
+        eventRefs.add(eventRef);
+        eventIndex().put(eventRef, this);
+    }
+
+    public void removeEventRef(String eventRef) {
+        if (eventRefs.remove(eventRef)) {
+            eventIndex().remove(eventRef, this);
+
+            if (timers != null && timers.remove(eventRef) != null) {
+                TimingWheel.Timeout t = timeouts != null ? timeouts.remove(eventRef) : null;
+                if (t != null) {
+                    t.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return deadlines of the timer events: eventRef to the deadline (milliseconds since the epoch).
+     */
+    public Map<String, Long> getTimers() {
+        if (timers == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(timers);
+    }
+
+    /**
+     * Adds an event which must be fired by the engine when the deadline comes.
+     * The timer is cancelled when the event is {@link #removeEventRef(String) removed}.
+     *
+     * @param deadline milliseconds since the epoch.
+     */
+    public void addTimer(String eventRef, long deadline) {
+        addEventRef(eventRef);
+
+        if (timers == null) {
+            timers = new HashMap<>(2);
+        }
+        timers.put(eventRef, deadline);
+    }
+
+    /**
+     * Associates a scheduled timeout with the timer event.
+     */
+    void setTimeout(String eventRef, TimingWheel.Timeout timeout) {
+        if (timeouts == null) {
+            timeouts = new HashMap<>(2);
+        }
+        timeouts.put(eventRef, timeout);
+    }
+
+    /**
+     * @return {@code true} if the timer event is scheduled.
+     */
+    boolean hasTimeout(String eventRef) {
+        return timeouts != null && timeouts.containsKey(eventRef);
+    }
+
+    /**
+     * Cancels the scheduled timeouts of the state's timers and deadline, e.g. when
+     * the engine switches to another copy of the tree. The timers themselves stay.
+     */
+    void cancelTimeouts() {
+        if (timeouts != null) {
+            timeouts.values().forEach(TimingWheel.Timeout::cancel);
+            timeouts = null;
+        }
+
+        if (deadlineTimeout != null) {
+            deadlineTimeout.cancel();
+            deadlineTimeout = null;
+        }
+    }
+
+    /**
+     * Sets the condition which is notified when the state's children stop,
+     * {@code null} to remove it.
+     */
+    public void setJoinCondition(JoinCondition joinCondition) {
+        this.joinCondition = joinCondition;
+    }
+
+    JoinCondition getJoinCondition() {
+        return joinCondition;
+    }
+
+    /**
+     * @return {@code true} if a thread is evaluating the state.
+     */
+    boolean isRunning() {
+        return runner != null;
+    }
+
+    TimingWheel.Timeout getDeadlineTimeout() {
+        return deadlineTimeout;
+    }
+
+    void setDeadlineTimeout(TimingWheel.Timeout deadlineTimeout) {
+        this.deadlineTimeout = deadlineTimeout;
+    }
+
+    /**
+     * Removes all events of the state, cancelling their timers.
+     */
+    void clearEventRefs() {
+        for (String eventRef : new ArrayList<>(eventRefs)) {
+            removeEventRef(eventRef);
+        }
+    }
+
+    /**
+     * @return a copy of the children. Can be called while the children are being spawned.
+     */
+    List<State> snapshotChildren() {
+        return new ArrayList<>(children.values());
+    }
+
+    /**
+     * Returns a state object of the tree which owns the specified {@code eventRef}.
+     */
+    State findEventOwner(String eventRef) {
+        return eventIndex().get(eventRef);
     }
 
     public Throwable getLastError() {
@@ -78,8 +483,400 @@ public class State implements Serializable {
         this.lastError = lastError;
     }
 
+    /**
+     * Atomically changes the error if the current error is the expected one.
+     *
+     * @return {@code true} if the error was changed.
+     */
+    public boolean compareAndSetLastError(Throwable expected, Throwable lastError) {
+        return LAST_ERROR.compareAndSet(this, expected, lastError);
+    }
+
+    /**
+     * Returns the changes made to the tree by the engine since the state was
+     * created or loaded, or since the previous call of this method.
+     * Can be used to persist the state incrementally: the returned delta can be
+     * appended to a log and {@link StateDelta#merge(StateDelta) compacted} later.
+     * <p>
+     * Must be called on the root state, when no "threads" are running.
+     */
+    public StateDelta takeDelta() {
+        if (parent != null) {
+            throw new IllegalStateException("Deltas are tracked by the root state only");
+        }
+
+        Changes c = changes;
+        if (c == null) {
+            return new StateDelta(id, Collections.emptyList(), Collections.emptySet());
+        }
+
+        changes = new Changes();
+        return c.toDelta(id);
+    }
+
+    /**
+     * Starts tracking changes of the tree. Must be called on the root state.
+     */
+    void trackChanges() {
+        if (changes == null) {
+            changes = new Changes();
+        }
+    }
+
+    /**
+     * Marks the state as modified.
+     */
+    void markChanged() {
+        Changes c = getRoot().changes;
+        if (c != null) {
+            c.changed.add(this);
+        }
+    }
+
+    /**
+     * @return the lock which serializes the executions of the tree. Must be called on the root state.
+     */
+    ReentrantLock executionLock() {
+        ReentrantLock l = executionLock;
+        if (l != null) {
+            return l;
+        }
+
+        lock.lock();
+        try {
+            if (executionLock == null) {
+                executionLock = new ReentrantLock();
+            }
+            return executionLock;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the tasks of the tree. Must be called on the root state.
+     */
+    TaskGroup tasks() {
+        TaskGroup t = tasks;
+        if (t != null) {
+            return t;
+        }
+
+        lock.lock();
+        try {
+            if (tasks == null) {
+                tasks = new TaskGroup();
+            }
+            return tasks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the sequence number of the next evaluated command.
+     */
+    int nextCommandSeq() {
+        return commandSeq++;
+    }
+
+    /**
+     * Marks the state as evaluated by the current thread.
+     */
+    void enter() {
+        runner = Thread.currentThread();
+    }
+
+    /**
+     * Called by the thread evaluating the state when it's done.
+     * Clears the interrupt caused by a {@link #cancel(CancellationException) cancellation}.
+     */
+    void exit() {
+        runner = null;
+
+        if (cancellation != null) {
+            // the cancelling thread interrupts the runner while holding the lock
+            lock.lock();
+            try {
+                Thread.interrupted();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Requests cancellation of the state: interrupts the thread evaluating
+     * the state and wakes it up if it's waiting for its children.
+     * The state finishes as {@link Status#DONE} with the specified error
+     * the next time it's evaluated.
+     *
+     * @return {@code true} if the state was parked and must be re-scheduled by the caller.
+     */
+    boolean cancel(CancellationException error) {
+        lock.lock();
+        try {
+            if (cancellation == null) {
+                cancellation = error;
+            }
+
+            Thread t = runner;
+            if (t != null) {
+                t.interrupt();
+            }
+
+            childrenStopped.signalAll();
+
+            if (parked) {
+                parked = false;
+                status = Status.READY;
+                return true;
+            }
+
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Registers a newly spawned child "thread". Queued children are
+     * counted as running, i.e. the state waits for them too.
+     *
+     * @param limit max number of children running at the same time, {@code 0} - unlimited.
+     * @return {@code true} if the child must be scheduled by the caller,
+     * {@code false} if it was queued and will be returned by {@link #childStopped()} later.
+     */
+    boolean childStarted(State child, int limit) {
+        lock.lock();
+        try {
+            activeChildren++;
+
+            int queued = queuedChildren != null ? queuedChildren.size() : 0;
+            if (limit <= 0 || activeChildren - queued <= limit) {
+                return true;
+            }
+
+            if (queuedChildren == null) {
+                queuedChildren = new ArrayDeque<>();
+            }
+            queuedChildren.add(child);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called when a child "thread" stops running, i.e. becomes
+     * {@link Status#DONE} or {@link Status#SUSPENDED}.
+     *
+     * @return the state which must be scheduled by the caller: either
+     * a queued child which can run now or, if it was the last running child
+     * of a parked state, the state itself ({@link Status#READY} again).
+     * Returns {@code null} if there is nothing to schedule.
+     */
+    State childStopped() {
+        lock.lock();
+        try {
+            activeChildren--;
+            childrenStopped.signalAll();
+
+            if (queuedChildren != null && !queuedChildren.isEmpty()) {
+                return queuedChildren.poll();
+            }
+
+            if (activeChildren == 0 && parked) {
+                parked = false;
+                status = Status.READY;
+                return this;
+            }
+
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return {@code true} if any child "threads" are running or queued.
+     */
+    boolean hasActiveChildren() {
+        lock.lock();
+        try {
+            return activeChildren > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until all child "threads" stop running or the state is cancelled.
+     */
+    void awaitChildren() throws InterruptedException {
+        lock.lock();
+        try {
+            while (activeChildren > 0 && cancellation == null) {
+                childrenStopped.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Switches the state to {@link Status#WAITING} if it has any running children.
+     * The thread evaluating the state must finish the current command and
+     * {@link #park()} the state.
+     *
+     * @return {@code true} if the state is waiting for its children.
+     */
+    boolean prepareToPark() {
+        lock.lock();
+        try {
+            if (activeChildren == 0) {
+                return false;
+            }
+
+            status = Status.WAITING;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a {@link Status#WAITING} state so it can be re-scheduled
+     * by its last running child.
+     *
+     * @return {@code false} if all children stopped in the meantime and
+     * the state is {@link Status#READY} again.
+     */
+    boolean park() {
+        lock.lock();
+        try {
+            if (activeChildren == 0) {
+                status = Status.READY;
+                return false;
+            }
+
+            parked = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the parked state is released by its last running child
+     * or {@link #cancel(CancellationException) cancelled}.
+     */
+    void awaitUnparked() throws InterruptedException {
+        lock.lock();
+        try {
+            while (parked) {
+                childrenStopped.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void initLock() {
+        lock = new ReentrantLock();
+        childrenStopped = lock.newCondition();
+    }
+
+    private Map<String, State> eventIndex() {
+        State root = getRoot();
+
+        Map<String, State> idx = root.eventIndex;
+        if (idx != null) {
+            return idx;
+        }
+
+        // the root's lock rather than its monitor, so virtual threads don't pin their carriers
+        root.lock.lock();
+        try {
+            idx = root.eventIndex;
+            if (idx == null) {
+                idx = new ConcurrentHashMap<>();
+                index(root, idx);
+                root.eventIndex = idx;
+            }
+            return idx;
+        } finally {
+            root.lock.unlock();
+        }
+    }
+
+    private static void index(State state, Map<String, State> idx) {
+        for (String eventRef : state.eventRefs) {
+            idx.put(eventRef, state);
+        }
+
+        for (State c : state.children.values()) {
+            index(c, idx);
+        }
+    }
+
+    private static void unindex(State state, Map<String, State> idx) {
+        for (String eventRef : state.eventRefs) {
+            idx.remove(eventRef, state);
+        }
+
+        for (State c : state.children.values()) {
+            unindex(c, idx);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        initLock();
+
+        for (State c : children.values()) {
+            c.parent = this;
+        }
+    }
+
+    private static final class Changes {
+
+        private final Set<State> changed = ConcurrentHashMap.newKeySet();
+        private final Set<StateId> removed = ConcurrentHashMap.newKeySet();
+
+        void added(State state) {
+            changed.add(state);
+            removed.remove(state.id);
+
+            for (State c : state.children.values()) {
+                added(c);
+            }
+        }
+
+        void removed(State state) {
+            changed.remove(state);
+            removed.add(state.id);
+
+            for (State c : state.children.values()) {
+                removed(c);
+            }
+        }
+
+        StateDelta toDelta(StateId rootId) {
+            List<StateDelta.Node> nodes = new ArrayList<>(changed.size());
+            for (State s : changed) {
+                nodes.add(StateDelta.Node.of(s));
+            }
+            return new StateDelta(rootId, nodes, new HashSet<>(removed));
+        }
+    }
+
     public enum Status {
         READY,
+        /**
+         * The state is parked until its running children complete or suspend.
+         */
+        WAITING,
         SUSPENDED,
         DONE
     }
@@ -0,0 +1,254 @@
+package com.github.ibodrov.simpleflowengine;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.State.Status;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Changes of a {@link State} tree: new or modified states and IDs of
+ * the removed ones. Each state is stored without its children, the tree
+ * structure is preserved using the parent IDs.
+ * <p>
+ * A {@link #snapshot(State) snapshot} of the whole tree followed by
+ * the deltas {@link State#takeDelta() taken} after each execution can be
+ * {@link #merge(StateDelta) compacted} into a single delta and
+ * {@link #toState() converted} back into the tree.
+ */
+public class StateDelta implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final StateId rootId;
+    private final Collection<Node> changed;
+    private final Set<StateId> removed;
+
+    public StateDelta(StateId rootId, Collection<Node> changed, Set<StateId> removed) {
+        this.rootId = rootId;
+        this.changed = changed;
+        this.removed = removed;
+    }
+
+    /**
+     * Creates a delta containing all states of the specified tree.
+     */
+    public static StateDelta snapshot(State root) {
+        List<Node> nodes = new ArrayList<>();
+        collect(root, nodes);
+        return new StateDelta(root.getId(), nodes, Collections.emptySet());
+    }
+
+    public StateId getRootId() {
+        return rootId;
+    }
+
+    public Collection<Node> getChanged() {
+        return changed;
+    }
+
+    public Set<StateId> getRemoved() {
+        return removed;
+    }
+
+    public boolean isEmpty() {
+        return changed.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * Combines this delta with the next one. The changes of the next delta
+     * take precedence.
+     */
+    public StateDelta merge(StateDelta next) {
+        if (!rootId.equals(next.rootId)) {
+            throw new IllegalArgumentException("Can't merge deltas of different trees: " + rootId + ", " + next.rootId);
+        }
+
+        Map<StateId, Node> nodes = new LinkedHashMap<>();
+        for (Node n : changed) {
+            nodes.put(n.id, n);
+        }
+        for (StateId id : next.removed) {
+            nodes.remove(id);
+        }
+        for (Node n : next.changed) {
+            nodes.put(n.id, n);
+        }
+
+        Set<StateId> ids = new HashSet<>(removed);
+        ids.addAll(next.removed);
+        ids.removeAll(nodes.keySet());
+
+        return new StateDelta(rootId, new ArrayList<>(nodes.values()), ids);
+    }
+
+    /**
+     * Restores the tree. The delta must contain all states of the tree,
+     * e.g. be a {@link #snapshot(State) snapshot} merged with subsequent deltas.
+     */
+    public State toState() {
+        Map<StateId, State> states = new HashMap<>(changed.size());
+        for (Node n : changed) {
+            State s = new State(n.id);
+            for (Command cmd : n.stack) {
+                s.getStack().push(cmd);
+            }
+            s.setStatus(n.status);
+            s.setLastError(n.lastError);
+            s.setPool(n.pool);
+            s.setDeadline(n.deadline);
+            states.put(n.id, s);
+        }
+
+        for (Node n : changed) {
+            if (n.parentId == null) {
+                continue;
+            }
+
+            State p = states.get(n.parentId);
+            if (p == null) {
+                throw new IllegalStateException("Parent state not found: " + n.parentId + " (child " + n.id + ")");
+            }
+
+            p.addChild(states.get(n.id));
+        }
+
+        State root = states.get(rootId);
+        if (root == null) {
+            throw new IllegalStateException("Root state not found: " + rootId);
+        }
+
+        for (Node n : changed) {
+            State s = states.get(n.id);
+            if (s.getRoot() != root) {
+                throw new IllegalStateException("Detached state: " + n.id);
+            }
+
+            for (String eventRef : n.eventRefs) {
+                s.addEventRef(eventRef);
+            }
+
+            n.timers.forEach(s::addTimer);
+        }
+
+        return root;
+    }
+
+    private static void collect(State state, List<Node> nodes) {
+        nodes.add(Node.of(state));
+        for (State c : state.getChildren()) {
+            collect(c, nodes);
+        }
+    }
+
+    /**
+     * A single state without its children.
+     */
+    public static final class Node implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final StateId id;
+        private final StateId parentId;
+        private final Status status;
+        private final Set<String> eventRefs;
+        private final List<Command> stack;
+        private final Throwable lastError;
+        private final String pool;
+        private final Map<String, Long> timers;
+        private final long deadline;
+
+        /**
+         * @param stack the stack's items, starting from the bottom of the stack.
+         */
+        public Node(StateId id, StateId parentId, Status status, Set<String> eventRefs,
+                    List<Command> stack, Throwable lastError, String pool, Map<String, Long> timers,
+                    long deadline) {
+
+            this.id = id;
+            this.parentId = parentId;
+            this.status = status;
+            this.eventRefs = eventRefs;
+            this.stack = stack;
+            this.lastError = lastError;
+            this.pool = pool;
+            this.timers = timers;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Creates a copy of the state, without its children.
+         */
+        public static Node of(State state) {
+            State parent = state.getParent();
+            return new Node(state.getId(),
+                    parent != null ? parent.getId() : null,
+                    state.getStatus(),
+                    new HashSet<>(state.getEventRefs()),
+                    state.getStack().toList(),
+                    state.getLastError(),
+                    state.getPool(),
+                    new HashMap<>(state.getTimers()),
+                    state.getDeadline());
+        }
+
+        public StateId getId() {
+            return id;
+        }
+
+        /**
+         * @return ID of the parent state or {@code null} for the root.
+         */
+        public StateId getParentId() {
+            return parentId;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public Set<String> getEventRefs() {
+            return eventRefs;
+        }
+
+        public List<Command> getStack() {
+            return stack;
+        }
+
+        public Throwable getLastError() {
+            return lastError;
+        }
+
+        public String getPool() {
+            return pool;
+        }
+
+        public Map<String, Long> getTimers() {
+            return timers;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+}
@@ -21,7 +21,6 @@ package com.github.ibodrov.simpleflowengine;
  */
 
 import java.io.Serializable;
-import java.util.Objects;
 
 public class StateId implements Serializable {
 
@@ -31,6 +30,10 @@ public class StateId implements Serializable {
         this.id = id;
     }
 
+    public long getValue() {
+        return id;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -41,7 +44,7 @@ public class StateId implements Serializable {
 
     @Override
     public int hashCode() {
-        return Objects.hash(id);
+        return Long.hashCode(id);
     }
 
     @Override
@@ -0,0 +1,36 @@
+package com.github.ibodrov.simpleflowengine;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+/**
+ * Generates the values of {@link StateId}s. The values must be unique
+ * across all engines which share the same states, e.g. through a
+ * {@link com.github.ibodrov.simpleflowengine.store.StateStore state store}.
+ * <p>
+ * Implementations must be thread-safe, the engine calls the generator
+ * from all threads running the processes.
+ *
+ * @see SnowflakeIdGenerator
+ */
+public interface StateIdGenerator {
+
+    long nextId();
+}
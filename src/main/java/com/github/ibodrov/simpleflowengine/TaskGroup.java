@@ -0,0 +1,110 @@
+package com.github.ibodrov.simpleflowengine;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tasks submitted by the engine which are queued or running in the executors,
+ * e.g. the tasks of a process or all tasks of an engine. Tasks are added
+ * before they're submitted and remove themselves once they complete.
+ */
+final class TaskGroup {
+
+    private final Set<Future<?>> tasks = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition empty = lock.newCondition();
+
+    void add(Future<?> task) {
+        tasks.add(task);
+    }
+
+    void remove(Future<?> task) {
+        if (!tasks.remove(task) || !tasks.isEmpty()) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            empty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of tasks which are queued or running.
+     */
+    int size() {
+        return tasks.size();
+    }
+
+    /**
+     * Blocks until all tasks complete, including the tasks added by
+     * the running tasks.
+     */
+    void awaitUninterruptibly() {
+        lock.lock();
+        try {
+            while (!tasks.isEmpty()) {
+                empty.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until all tasks complete or the timeout elapses.
+     *
+     * @return {@code true} if all tasks completed.
+     */
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+
+        lock.lock();
+        try {
+            while (!tasks.isEmpty()) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = empty.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cancels the tasks, interrupting the running ones.
+     */
+    void cancelAll() {
+        for (Future<?> t : tasks) {
+            t.cancel(true);
+        }
+    }
+}
@@ -25,8 +25,8 @@ import com.github.ibodrov.simpleflowengine.Stack;
 import com.github.ibodrov.simpleflowengine.State;
 import com.github.ibodrov.simpleflowengine.StateId;
 
-import java.util.*;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Block implements Command {
 
@@ -34,14 +34,86 @@ public class Block implements Command {
 
     private final Strategy strategy;
     private final List<Command> commands;
+    private final String pool;
+    private final int maxConcurrency;
+    private final long timeout;
+    private final JoinPolicy joinPolicy;
 
     public Block(List<Command> commands) {
         this(Strategy.SEQUENTIAL, commands);
     }
 
     public Block(Strategy strategy, List<Command> commands) {
+        this(strategy, commands, null, 0);
+    }
+
+    /**
+     * @param pool           name of the executor pool used to run {@link Strategy#PARALLEL parallel}
+     *                       branches, {@code null} - the current state's pool
+     * @param maxConcurrency max number of parallel branches running at the same time,
+     *                       the rest are queued. {@code 0} - unlimited
+     * @see com.github.ibodrov.simpleflowengine.Engine.Builder#withExecutor(String, java.util.concurrent.ExecutorService)
+     */
+    public Block(Strategy strategy, List<Command> commands, String pool, int maxConcurrency) {
+        this(strategy, commands, pool, maxConcurrency, 0);
+    }
+
+    /**
+     * @param timeout max execution time of the block in milliseconds, {@code 0} - unlimited.
+     *                A block with a timeout runs its commands in child "threads" which are
+     *                {@link com.github.ibodrov.simpleflowengine.Engine#cancel(State, StateId) cancelled}
+     *                when the time runs out.
+     * @see #Block(Strategy, List, String, int)
+     */
+    public Block(Strategy strategy, List<Command> commands, String pool, int maxConcurrency, long timeout) {
+        this(strategy, commands, pool, maxConcurrency, timeout, JoinPolicy.ALL);
+    }
+
+    /**
+     * @param joinPolicy defines when the {@link Strategy#PARALLEL parallel} block completes
+     * @see #Block(Strategy, List, String, int, long)
+     */
+    public Block(Strategy strategy, List<Command> commands, String pool, int maxConcurrency, long timeout,
+                 JoinPolicy joinPolicy) {
+
+        if (maxConcurrency < 0) {
+            throw new IllegalArgumentException("Invalid maxConcurrency: " + maxConcurrency);
+        }
+
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Invalid timeout: " + timeout);
+        }
+
         this.strategy = strategy;
         this.commands = commands;
+        this.pool = pool;
+        this.maxConcurrency = maxConcurrency;
+        this.timeout = timeout;
+        this.joinPolicy = joinPolicy;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public List<Command> getCommands() {
+        return commands;
+    }
+
+    public String getPool() {
+        return pool;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public JoinPolicy getJoinPolicy() {
+        return joinPolicy;
     }
 
     @Override
@@ -49,17 +121,22 @@ public class Block implements Command {
         Stack<Command> stack = state.getStack();
         stack.pop();
 
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+
         switch (this.strategy) {
             case SEQUENTIAL: {
+                if (deadline != 0) {
+                    // the deadline applies to a state, run the commands in a child
+                    StateId id = ctx.nextStateId();
+                    stack.push(new Join(new long[]{id.getValue()}, JoinPolicy.ALL));
+                    stack.push(new Fork(id, new Block(commands), pool, maxConcurrency, deadline));
+                    break;
+                }
+
                 // sequential execution is very simple: we just need to add
                 // each command of the block onto the stack
-
-                List<Command> l = new ArrayList<>(commands);
-
-                // to preserve the original order the commands must be added onto
-                // the stack in the reversed order
-                Collections.reverse(l);
-                l.forEach(stack::push);
+                // (in the reversed order to preserve the original order)
+                stack.pushAll(commands);
 
                 break;
             }
@@ -67,14 +144,17 @@ public class Block implements Command {
                 // parallel execution consist of creating "forks" for each command
                 // and a combined "join"
 
-                List<Map.Entry<StateId, Command>> forks = commands.stream()
-                        .map(e -> new AbstractMap.SimpleEntry<>(ctx.nextStateId(), e))
-                        .collect(Collectors.toList());
+                List<Command> forks = new ArrayList<>(commands.size());
+                long[] ids = new long[commands.size()];
 
-                stack.push(new Join(forks.stream().map(Map.Entry::getKey).collect(Collectors.toSet())));
+                for (int i = 0; i < ids.length; i++) {
+                    StateId id = ctx.nextStateId();
+                    forks.add(new Fork(id, commands.get(i), pool, maxConcurrency, deadline));
+                    ids[i] = id.getValue();
+                }
 
-                Collections.reverse(forks);
-                forks.forEach(f -> stack.push(new Fork(f.getKey(), f.getValue())));
+                stack.push(new Join(ids, joinPolicy));
+                stack.pushAll(forks);
 
                 break;
             }
@@ -34,6 +34,10 @@ public class EvalCommand implements Command {
         this.command = command;
     }
 
+    public Command getCommand() {
+        return command;
+    }
+
     @Override
     public void eval(RuntimeContext ctx, State state) {
         Stack<Command> stack = state.getStack();
@@ -28,6 +28,9 @@ import com.github.ibodrov.simpleflowengine.StateId;
 /**
  * Spawns a new child "thread" using the specified command as
  * its starting point.
+ * <p>
+ * The child runs on the specified executor pool or, if no pool
+ * is specified, on the pool of its parent.
  */
 public class Fork implements Command {
 
@@ -35,10 +38,57 @@ public class Fork implements Command {
 
     private final StateId id;
     private final Command command;
+    private final String pool;
+    private final int maxConcurrency;
+    private final long deadline;
 
     public Fork(StateId id, Command command) {
+        this(id, command, null, 0);
+    }
+
+    /**
+     * @param pool           name of the executor pool, {@code null} - inherit the parent's pool
+     * @param maxConcurrency max number of the parent's children running at the same time,
+     *                       {@code 0} - unlimited
+     */
+    public Fork(StateId id, Command command, String pool, int maxConcurrency) {
+        this(id, command, pool, maxConcurrency, 0);
+    }
+
+    /**
+     * @param deadline the child's {@link State#getDeadline() deadline}, {@code 0} - no deadline
+     * @see #Fork(StateId, Command, String, int)
+     */
+    public Fork(StateId id, Command command, String pool, int maxConcurrency, long deadline) {
+        if (maxConcurrency < 0) {
+            throw new IllegalArgumentException("Invalid maxConcurrency: " + maxConcurrency);
+        }
+
         this.id = id;
         this.command = command;
+        this.pool = pool;
+        this.maxConcurrency = maxConcurrency;
+        this.deadline = deadline;
+    }
+
+    public StateId getId() {
+        return id;
+    }
+
+    public Command getCommand() {
+        return command;
+    }
+
+    public String getPool() {
+        return pool;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public long getDeadline() {
+        return deadline;
     }
 
     @Override
@@ -48,9 +98,10 @@ public class Fork implements Command {
 
         State child = new State(id);
         child.getStack().push(command);
-        state.getChildren().add(child);
+        child.setPool(pool != null ? pool : state.getPool());
+        child.setDeadline(deadline);
+        state.addChild(child);
 
-        // TODO allow block-local thread pools
-        ctx.spawn(child);
+        ctx.spawn(child, maxConcurrency);
     }
 }
@@ -23,93 +23,315 @@ package com.github.ibodrov.simpleflowengine.commands;
 import com.github.ibodrov.simpleflowengine.*;
 import com.github.ibodrov.simpleflowengine.State.Status;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Waits for the specified child "threads" to complete or suspend.
- * Suspends the current "thread" if there are any suspended children.
+ * Suspends the current "thread" if there are any suspended children
+ * and the outcome depends on them.
+ * <p>
+ * The {@link JoinPolicy policy} defines when the join completes. With
+ * policies other than {@link JoinPolicy#ALL} the results of the children are
+ * checked as soon as each child stops and the children which are no longer
+ * needed are {@link RuntimeContext#cancel(State, CancellationException) cancelled}
+ * immediately. The join still waits for the cancelled children to stop.
+ * <p>
+ * The serialized form is not compatible with the joins serialized by
+ * the previous versions, which kept the children's IDs in a set.
  */
 public class Join implements Command {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
-    private final Set<StateId> ids;
+    /**
+     * Values of the children's IDs, sorted and without duplicates.
+     */
+    private final long[] ids;
+    private final JoinPolicy policy;
 
     public Join(Set<StateId> ids) {
-        this.ids = ids;
+        this(ids, JoinPolicy.ALL);
+    }
+
+    public Join(Set<StateId> ids, JoinPolicy policy) {
+        this(values(ids), policy);
+    }
+
+    /**
+     * @param ids values of the children's {@link StateId IDs}
+     */
+    public Join(long[] ids, JoinPolicy policy) {
+        this.ids = sortedSet(ids);
+        this.policy = policy;
+    }
+
+    /**
+     * @return values of the children's {@link StateId IDs} in ascending order.
+     * The returned array must not be modified.
+     */
+    public long[] getIds() {
+        return ids;
+    }
+
+    public JoinPolicy getPolicy() {
+        return policy;
     }
 
     @Override
     public void eval(RuntimeContext ctx, State state) {
         Stack<Command> stack = state.getStack();
 
-        // Here's a very dumb but working solution to the problem
-        // of monitoring the child "threads" state - just a loop
-        // with a delay. On each iteration it decides whether
-        // the join command can be removed from the stack (and thus
-        // continuing the execution) or not.
-        // We could've used futures instead, but it's way more
-        // complicated - especially when suspend/resume are involved.
-
-        while (true) {
-            boolean done = allDone(state, ids);
-
-            // all children are done, proceed with the execution
-            if (done) {
-                handleErrors(state, ids);
-                stack.pop();
-                return;
+        if (policy.getType() == JoinPolicy.Type.QUORUM && policy.getQuorum() > ids.length) {
+            throw new IllegalStateException("Quorum " + policy.getQuorum() + " can't be reached with " + ids.length + " branch(es)");
+        }
+
+        if (policy.getType() != JoinPolicy.Type.ALL) {
+            Tracker tracker = new Tracker(state);
+            state.setJoinCondition(tracker);
+            // some children might have stopped before the join started
+            tracker.check(ctx);
+        }
+
+        // children notify the parent when they complete or suspend,
+        // so there's no need to poll their status
+        if (!ctx.awaitChildren(state)) {
+            // parked, the command will be evaluated again once the children stop
+            return;
+        }
+
+        state.setJoinCondition(null);
+
+        State[] children = children(state);
+
+        // all aggregates in a single pass over the children
+        int done = 0;
+        int failed = 0;
+        int suspended = 0;
+        List<Throwable> failures = new ArrayList<>();
+        List<Throwable> cancellations = new ArrayList<>();
+        for (State c : children) {
+            // cancelled children which stopped as SUSPENDED
+            CancellationException e = c.getCancellation();
+            if (e != null && c.getStatus() != Status.DONE) {
+                ctx.cancel(c, e);
             }
 
-            boolean suspended = any(state, ids, Status.SUSPENDED);
-            boolean ready = any(state, ids, Status.READY);
+            if (c.getStatus() == Status.SUSPENDED) {
+                suspended++;
+                continue;
+            }
 
-            // all children are either DONE or SUSPENDED - suspend the parent thread
-            if (!ready && suspended) {
-                handleErrors(state, ids);
-                state.setStatus(Status.SUSPENDED);
-                return;
+            Throwable t = c.getLastError();
+            if (t == null) {
+                done++;
+            } else if (t instanceof CancellationException) {
+                failed++;
+                cancellations.add(t);
+            } else {
+                failed++;
+                failures.add(t);
+            }
+        }
+
+        // with the early completion the cancelled siblings are not interesting,
+        // unless there's nothing else
+        List<Throwable> errors = failures.isEmpty() ? cancellations : failures;
+
+        switch (policy.getType()) {
+            case ALL: {
+                failures.addAll(cancellations);
+                handleErrors(failures);
+                break;
+            }
+            case FAIL_FAST: {
+                handleErrors(errors);
+                break;
+            }
+            case FIRST: {
+                if (done > 0) {
+                    stack.pop();
+                    return;
+                }
+
+                if (suspended == 0) {
+                    handleErrors(errors);
+                }
+                break;
             }
+            case QUORUM: {
+                if (done >= policy.getQuorum()) {
+                    stack.pop();
+                    return;
+                }
 
-            // some children are still running, wait for a bit and then check again
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+                if (children.length - failed < policy.getQuorum()) {
+                    handleErrors(errors);
+                }
+                break;
+            }
+            default: {
+                throw new IllegalStateException("Unknown join policy: " + policy);
             }
         }
-    }
 
-    private static State getState(State root, StateId id) {
-        return root.getChildren().stream()
-                .filter(s -> s.getId().equals(id))
-                .findFirst()
-                .orElseThrow(() -> new IllegalStateException("State not found: " + id));
+        // all children are done, proceed with the execution
+        if (suspended == 0) {
+            stack.pop();
+            return;
+        }
+
+        // the outcome depends on the SUSPENDED children - suspend the parent thread
+        state.setStatus(Status.SUSPENDED);
     }
 
-    private static boolean allDone(State root, Set<StateId> ids) {
-        return ids.stream().allMatch(id -> getState(root, id).getStatus() == Status.DONE);
+    /**
+     * @return the joined children in the order of {@link #ids}, looked up by their IDs.
+     */
+    private State[] children(State state) {
+        State[] result = new State[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            State c = state.getChild(ids[i]);
+            if (c == null) {
+                throw new IllegalStateException("State not found: " + ids[i]);
+            }
+            result[i] = c;
+        }
+        return result;
     }
 
-    private static boolean any(State root, Set<StateId> ids, Status status) {
-        return ids.stream().anyMatch(id -> getState(root, id).getStatus() == status);
+    private static long[] values(Set<StateId> ids) {
+        long[] result = new long[ids.size()];
+        int i = 0;
+        for (StateId id : ids) {
+            result[i++] = id.getValue();
+        }
+        return result;
     }
 
-    private static List<Throwable> findFailures(State root, Set<StateId> ids) {
-        return ids.stream().map(id -> getState(root, id))
-                .filter(s -> s.getLastError() != null)
-                .map(State::getLastError)
-                .collect(Collectors.toList());
+    private static long[] sortedSet(long[] ids) {
+        long[] result = ids.clone();
+        Arrays.sort(result);
+
+        int n = 0;
+        for (int i = 0; i < result.length; i++) {
+            if (n == 0 || result[n - 1] != result[i]) {
+                result[n++] = result[i];
+            }
+        }
+
+        return n == result.length ? result : Arrays.copyOf(result, n);
     }
 
-    private static void handleErrors(State root, Set<StateId> ids) {
-        List<Throwable> failures = findFailures(root, ids);
+    private static void handleErrors(List<Throwable> failures) {
         if (failures.isEmpty()) {
             return;
         }
 
         throw new MultipleExceptions(failures);
     }
+
+    /**
+     * Counts the results of the children as they stop and cancels
+     * the rest once the outcome is known.
+     */
+    private final class Tracker implements JoinCondition {
+
+        private final State[] children;
+
+        /**
+         * Bits of the counted children, indexed by the children's positions in {@link #ids}.
+         */
+        private final AtomicLongArray counted;
+        private final AtomicInteger done = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicBoolean triggered = new AtomicBoolean();
+
+        private Tracker(State state) {
+            this.children = children(state);
+            this.counted = new AtomicLongArray((ids.length + 63) >>> 6);
+        }
+
+        @Override
+        public void childStopped(RuntimeContext ctx, State state, State child) {
+            int i = Arrays.binarySearch(ids, child.getId().getValue());
+            if (i >= 0 && count(i, child)) {
+                trigger(ctx);
+            }
+        }
+
+        void check(RuntimeContext ctx) {
+            boolean changed = false;
+            for (int i = 0; i < children.length; i++) {
+                changed |= count(i, children[i]);
+            }
+
+            if (changed) {
+                trigger(ctx);
+            }
+        }
+
+        private boolean count(int i, State child) {
+            if (child.getStatus() != Status.DONE || !mark(i)) {
+                return false;
+            }
+
+            if (child.getLastError() == null) {
+                done.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+            return true;
+        }
+
+        /**
+         * @return {@code true} if the child wasn't counted before.
+         */
+        private boolean mark(int i) {
+            int word = i >>> 6;
+            long bit = 1L << i;
+            while (true) {
+                long v = counted.get(word);
+                if ((v & bit) != 0) {
+                    return false;
+                }
+
+                if (counted.compareAndSet(word, v, v | bit)) {
+                    return true;
+                }
+            }
+        }
+
+        private void trigger(RuntimeContext ctx) {
+            if (!isDecided() || !triggered.compareAndSet(false, true)) {
+                return;
+            }
+
+            CancellationException error = new CancellationException("Cancelled by the " + policy + " join");
+            for (State c : children) {
+                if (c.getStatus() != Status.DONE) {
+                    ctx.cancel(c, error);
+                }
+            }
+        }
+
+        private boolean isDecided() {
+            switch (policy.getType()) {
+                case FAIL_FAST:
+                    return failed.get() > 0;
+                case FIRST:
+                    return done.get() > 0;
+                case QUORUM:
+                    return done.get() >= policy.getQuorum() || children.length - failed.get() < policy.getQuorum();
+                default:
+                    return false;
+            }
+        }
+    }
 }
@@ -0,0 +1,126 @@
+package com.github.ibodrov.simpleflowengine.commands;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Defines when a {@link Join} completes and what happens to the branches
+ * which are still running at that moment. Branches which are no longer needed
+ * are cancelled as soon as the outcome is known, see
+ * {@link com.github.ibodrov.simpleflowengine.Engine#cancel(com.github.ibodrov.simpleflowengine.State,
+ * com.github.ibodrov.simpleflowengine.StateId)}.
+ */
+public final class JoinPolicy implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Waits for all branches, the failures are collected into {@link com.github.ibodrov.simpleflowengine.MultipleExceptions}.
+     */
+    public static final JoinPolicy ALL = new JoinPolicy(Type.ALL, 0);
+
+    /**
+     * Cancels the remaining branches on the first failure.
+     */
+    public static final JoinPolicy FAIL_FAST = new JoinPolicy(Type.FAIL_FAST, 0);
+
+    /**
+     * Completes when the first branch completes successfully, the rest are cancelled.
+     * Fails if all branches fail. Can be used for hedged requests.
+     */
+    public static final JoinPolicy FIRST = new JoinPolicy(Type.FIRST, 0);
+
+    private final Type type;
+    private final int quorum;
+
+    private JoinPolicy(Type type, int quorum) {
+        this.type = type;
+        this.quorum = quorum;
+    }
+
+    /**
+     * Completes when the specified number of branches complete successfully,
+     * the rest are cancelled. Fails as soon as the quorum becomes unreachable.
+     */
+    public static JoinPolicy quorum(int quorum) {
+        if (quorum < 1) {
+            throw new IllegalArgumentException("Invalid quorum: " + quorum);
+        }
+        return new JoinPolicy(Type.QUORUM, quorum);
+    }
+
+    public static JoinPolicy of(Type type, int quorum) {
+        switch (type) {
+            case ALL:
+                return ALL;
+            case FAIL_FAST:
+                return FAIL_FAST;
+            case FIRST:
+                return FIRST;
+            case QUORUM:
+                return quorum(quorum);
+            default:
+                throw new IllegalArgumentException("Unknown join policy: " + type);
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the number of branches required for {@link Type#QUORUM}, {@code 0} for other policies.
+     */
+    public int getQuorum() {
+        return quorum;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        JoinPolicy that = (JoinPolicy) o;
+        return quorum == that.quorum && type == that.type;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, quorum);
+    }
+
+    @Override
+    public String toString() {
+        return type == Type.QUORUM ? type + "(" + quorum + ")" : type.toString();
+    }
+
+    public enum Type {
+
+        ALL,
+        FAIL_FAST,
+        FIRST,
+        QUORUM
+    }
+}
@@ -0,0 +1,264 @@
+package com.github.ibodrov.simpleflowengine.commands;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.RuntimeContext;
+import com.github.ibodrov.simpleflowengine.Stack;
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.StateId;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes a list of commands in parallel using a fixed number of
+ * child "threads" (workers) instead of a child per command.
+ * <p>
+ * The commands are split into chunks. Each {@link Worker} takes the next
+ * unclaimed chunk, executes the chunk's commands sequentially and then takes
+ * another one, until all chunks are claimed. Workers which finish early keep
+ * taking the chunks, so the work is balanced between them.
+ * <p>
+ * The command itself is immutable and can be reused, e.g. as a constant of
+ * a {@link com.github.ibodrov.simpleflowengine.program.Program}. When evaluated,
+ * it replaces itself on the stack with a {@link Progress} which keeps the IDs
+ * of the workers and the number of claimed chunks of this particular execution.
+ * The commands of a chunk being executed are on the worker's stack, so
+ * a suspended worker continues the chunk when resumed. Fails as soon as any
+ * of the workers fails, the other workers are cancelled.
+ */
+public class ParallelForEach implements Command {
+
+    private static final long serialVersionUID = 2L;
+
+    private final List<Command> commands;
+    private final int chunkSize;
+    private final int parallelism;
+    private final String pool;
+
+    public ParallelForEach(List<Command> commands, int chunkSize, int parallelism) {
+        this(commands, chunkSize, parallelism, null);
+    }
+
+    /**
+     * @param chunkSize   max number of commands taken by a worker at once
+     * @param parallelism max number of workers
+     * @param pool        name of the executor pool used to run the workers,
+     *                    {@code null} - the current state's pool
+     */
+    public ParallelForEach(List<Command> commands, int chunkSize, int parallelism, String pool) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunkSize: " + chunkSize);
+        }
+
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        }
+
+        this.commands = commands;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+        this.pool = pool;
+    }
+
+    public List<Command> getCommands() {
+        return commands;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public String getPool() {
+        return pool;
+    }
+
+    /**
+     * @return number of chunks the commands are split into.
+     */
+    public int getChunkCount() {
+        return (commands.size() + chunkSize - 1) / chunkSize;
+    }
+
+    @Override
+    public void eval(RuntimeContext ctx, State state) {
+        Stack<Command> stack = state.getStack();
+        stack.pop();
+
+        int n = Math.min(parallelism, getChunkCount());
+        if (n == 0) {
+            return;
+        }
+
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = ctx.nextStateId().getValue();
+        }
+
+        Progress progress = new Progress(this, 0, ids);
+        stack.push(progress);
+
+        for (long id : ids) {
+            State child = new State(new StateId(id));
+            child.getStack().push(new Worker(progress));
+            child.setPool(pool != null ? pool : state.getPool());
+            state.addChild(child);
+
+            ctx.spawn(child);
+        }
+    }
+
+    /**
+     * Keeps the progress of a running {@link ParallelForEach} and waits
+     * for its workers. Stays on top of the parent's stack until all
+     * workers are done.
+     * <p>
+     * The fields are final, so the progress can be safely shared between
+     * the workers.
+     */
+    public static class Progress implements Command {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ParallelForEach command;
+
+        /**
+         * Number of claimed chunks.
+         */
+        private final AtomicInteger claimed;
+
+        /**
+         * Values of the workers' IDs.
+         */
+        private final long[] workers;
+
+        /**
+         * Restores the progress of a running command.
+         *
+         * @param claimed number of claimed chunks
+         * @param workers values of the workers' IDs
+         */
+        public Progress(ParallelForEach command, int claimed, long[] workers) {
+            this.command = command;
+            this.claimed = new AtomicInteger(claimed);
+            this.workers = workers;
+        }
+
+        public ParallelForEach getCommand() {
+            return command;
+        }
+
+        /**
+         * @return number of chunks claimed by the workers so far.
+         */
+        public int getClaimed() {
+            return Math.min(claimed.get(), command.getChunkCount());
+        }
+
+        /**
+         * @return values of the workers' IDs. The returned array must not be modified.
+         */
+        public long[] getWorkers() {
+            return workers;
+        }
+
+        @Override
+        public void eval(RuntimeContext ctx, State state) {
+            // the join pops the progress once the workers are done
+            new Join(workers, JoinPolicy.FAIL_FAST).eval(ctx, state);
+        }
+
+        /**
+         * @return the commands of the next unclaimed chunk or {@code null}
+         * if all chunks are claimed.
+         */
+        private List<Command> claim() {
+            int chunks = command.getChunkCount();
+            if (claimed.get() >= chunks) {
+                return null;
+            }
+
+            int chunk = claimed.getAndIncrement();
+            if (chunk >= chunks) {
+                return null;
+            }
+
+            List<Command> commands = command.getCommands();
+            int from = chunk * command.getChunkSize();
+            return commands.subList(from, Math.min(from + command.getChunkSize(), commands.size()));
+        }
+    }
+
+    /**
+     * Executes the chunks of a running {@link ParallelForEach}.
+     */
+    public static class Worker implements Command {
+
+        private static final long serialVersionUID = 2L;
+
+        /**
+         * The progress the worker was spawned with. Published to the worker's
+         * thread by {@link RuntimeContext#spawn(State)}. Not serialized:
+         * a restored worker finds the progress on top of its parent's stack,
+         * which is not modified while the worker runs.
+         */
+        private transient Progress progress;
+
+        /**
+         * Restores a worker, the progress is taken from the parent's stack.
+         */
+        public Worker() {
+        }
+
+        public Worker(Progress progress) {
+            this.progress = progress;
+        }
+
+        @Override
+        public void eval(RuntimeContext ctx, State state) {
+            Progress p = progress;
+            if (p == null) {
+                State parent = state.getParent();
+                if (parent == null || !(parent.getStack().peek() instanceof Progress)) {
+                    throw new IllegalStateException("The worker's parent is not running a ParallelForEach: " + state.getId());
+                }
+
+                p = (Progress) parent.getStack().peek();
+                progress = p;
+            }
+
+            Stack<Command> stack = state.getStack();
+
+            List<Command> chunk = p.claim();
+            if (chunk == null) {
+                stack.pop();
+                return;
+            }
+
+            // the worker stays on the stack to take the next chunk
+            stack.pushAll(chunk);
+        }
+    }
+}
@@ -41,6 +41,10 @@ public class Suspend implements Command {
         this.eventRef = eventRef;
     }
 
+    public String getEventRef() {
+        return eventRef;
+    }
+
     @Override
     public void eval(RuntimeContext ctx, State state) {
         log.info("Suspend -> {}", eventRef);
@@ -49,6 +53,6 @@ public class Suspend implements Command {
         stack.pop();
 
         state.setStatus(State.Status.SUSPENDED);
-        state.getEventRefs().add(eventRef);
+        state.addEventRef(eventRef);
     }
 }
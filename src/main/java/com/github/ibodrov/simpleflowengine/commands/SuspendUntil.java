@@ -0,0 +1,75 @@
+package com.github.ibodrov.simpleflowengine.commands;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import com.github.ibodrov.simpleflowengine.RuntimeContext;
+import com.github.ibodrov.simpleflowengine.State;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Suspends the current "thread" until the specified time.
+ * The engine resumes the process using the specified event when
+ * the deadline comes. The event can also be resumed earlier, as usual.
+ * <p>
+ * The deadline is stored in the {@link State#getTimers() state}, so the timer
+ * survives the serialization of the process.
+ *
+ * @see Timer
+ */
+public class SuspendUntil implements Command {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = LoggerFactory.getLogger(SuspendUntil.class);
+
+    private final String eventRef;
+    private final long deadline;
+
+    /**
+     * @param deadline milliseconds since the epoch.
+     */
+    public SuspendUntil(String eventRef, long deadline) {
+        this.eventRef = eventRef;
+        this.deadline = deadline;
+    }
+
+    public String getEventRef() {
+        return eventRef;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public void eval(RuntimeContext ctx, State state) {
+        log.info("SuspendUntil -> {} at {}", eventRef, deadline);
+        suspend(ctx, state, eventRef, deadline);
+    }
+
+    static void suspend(RuntimeContext ctx, State state, String eventRef, long deadline) {
+        state.getStack().pop();
+
+        state.setStatus(State.Status.SUSPENDED);
+        state.addTimer(eventRef, deadline);
+
+        ctx.scheduleTimer(state, eventRef);
+    }
+}
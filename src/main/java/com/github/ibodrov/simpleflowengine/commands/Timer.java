@@ -0,0 +1,63 @@
+package com.github.ibodrov.simpleflowengine.commands;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import com.github.ibodrov.simpleflowengine.RuntimeContext;
+import com.github.ibodrov.simpleflowengine.State;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Suspends the current "thread" for the specified amount of time.
+ * Unlike {@link SuspendUntil} the deadline is calculated when
+ * the command is evaluated.
+ */
+public class Timer implements Command {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = LoggerFactory.getLogger(Timer.class);
+
+    private final String eventRef;
+    private final long delay;
+
+    public Timer(String eventRef, long delay, TimeUnit unit) {
+        this.eventRef = eventRef;
+        this.delay = unit.toMillis(delay);
+    }
+
+    public String getEventRef() {
+        return eventRef;
+    }
+
+    /**
+     * @return the delay in milliseconds.
+     */
+    public long getDelay() {
+        return delay;
+    }
+
+    @Override
+    public void eval(RuntimeContext ctx, State state) {
+        log.info("Timer -> {} in {}ms", eventRef, delay);
+        SuspendUntil.suspend(ctx, state, eventRef, System.currentTimeMillis() + delay);
+    }
+}
@@ -0,0 +1,695 @@
+package com.github.ibodrov.simpleflowengine.journal;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of binary records stored in memory-mapped segment files.
+ * <p>
+ * Appending a record is a copy into the mapped segment. The segments are
+ * forced to the disk by a background thread: either periodically or, in
+ * the {@link SyncMode#SYNC} mode, as soon as there are appenders
+ * {@link #append(byte[]) waiting} for their records to become durable.
+ * All records appended while the previous fsync was running are committed
+ * together by the next one ("group commit"), so the throughput is not
+ * limited by the fsync rate.
+ * <p>
+ * Segment format:
+ * <pre>
+ * segment := record* 0
+ * record  := length crc32 payload
+ * </pre>
+ * Reading stops at the first zero length or at a record with an invalid
+ * checksum (e.g. a torn write).
+ */
+public class Journal implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(Journal.class);
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_SIZE = 8;
+
+    private final Path dir;
+    private final int segmentSize;
+    private final SyncMode syncMode;
+    private final long flushIntervalNanos;
+    private final long groupCommitDelayNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushRequested = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    private final Thread flusher;
+
+    /**
+     * Complete segments mapped for {@link #read(long) reading}.
+     */
+    private final ConcurrentMap<Integer, MappedByteBuffer> readOnlySegments = new ConcurrentHashMap<>();
+
+    // guarded by lock
+    private int segmentIndex;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long writtenPosition;
+    private long flushedPosition;
+    private int waiters;
+
+    /**
+     * Number of failed flushes, so the waiters fail only on the errors which
+     * happened while they were waiting.
+     */
+    private long flushFailures;
+
+    /**
+     * The error of the last flush, {@code null} if the last flush succeeded.
+     */
+    private IOException flushError;
+    private boolean closed;
+
+    /**
+     * Incremented on {@link #truncate()}, positions of different generations
+     * are not comparable.
+     */
+    private long generation;
+
+    /**
+     * The flushed position of the previous generation, i.e. at the moment of
+     * the last {@link #truncate()}.
+     */
+    private long truncatedFlushedPosition;
+
+    private Journal(Builder b) throws IOException {
+        this.dir = b.dir;
+        this.segmentSize = b.segmentSize;
+        this.syncMode = b.syncMode;
+        this.flushIntervalNanos = b.flushIntervalNanos;
+        this.groupCommitDelayNanos = b.groupCommitDelayNanos;
+
+        Files.createDirectories(dir);
+
+        List<Path> segments = segments(dir);
+        if (segments.isEmpty()) {
+            openSegment(0);
+        } else {
+            // continue the last segment
+            Path last = segments.get(segments.size() - 1);
+            openSegment(indexOf(last));
+            buffer.position(scan(buffer, null));
+        }
+
+        writtenPosition = position();
+        flushedPosition = writtenPosition;
+
+        flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public SyncMode getSyncMode() {
+        return syncMode;
+    }
+
+    /**
+     * Appends a record. In the {@link SyncMode#SYNC} mode blocks until
+     * the record is forced to the disk.
+     *
+     * @return the record's position, see {@link #read(long)}.
+     */
+    public long append(byte[] payload) throws IOException {
+        long pos = write(payload);
+
+        if (syncMode == SyncMode.SYNC) {
+            sync(pos);
+        }
+
+        return pos;
+    }
+
+    /**
+     * Appends a record without waiting for it to become durable.
+     *
+     * @return the record's position, see {@link #sync(long)} and {@link #read(long)}.
+     */
+    public long write(byte[] payload) throws IOException {
+        int size = HEADER_SIZE + payload.length;
+        if (size + 4 > segmentSize) {
+            throw new IllegalArgumentException("Record too large: " + payload.length + " byte(s)");
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        lock.lock();
+        try {
+            assertOpen();
+
+            // keep room for the terminating zero
+            if (buffer.remaining() < size + 4) {
+                nextSegment();
+            }
+
+            long pos = position();
+
+            buffer.putInt(payload.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(payload);
+
+            writtenPosition = position();
+            return pos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the record at the specified position and all records
+     * before it are forced to the disk.
+     *
+     * @throws IOException if a flush failed while waiting or the journal was {@link #truncate() truncated}
+     *                     before the record became durable. The failed flushes are retried
+     *                     in the background, so the later calls may succeed.
+     */
+    public void sync(long position) throws IOException {
+        lock.lock();
+        try {
+            // the flushed position is always the end of a record
+            if (flushedPosition > position) {
+                return;
+            }
+
+            long gen = generation;
+            long failures = flushFailures;
+
+            waiters++;
+            try {
+                flushRequested.signal();
+
+                while (true) {
+                    if (gen != generation) {
+                        if (gen == generation - 1 && truncatedFlushedPosition > position) {
+                            // flushed just before the truncation
+                            return;
+                        }
+                        throw new IOException("Journal truncated before the record at " + position + " was flushed");
+                    }
+
+                    if (flushedPosition > position) {
+                        return;
+                    }
+
+                    if (flushFailures != failures) {
+                        throw new IOException("Journal flush failed", flushError);
+                    }
+                    flushed.awaitUninterruptibly();
+                }
+            } finally {
+                waiters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads all records of the journal, in the order they were appended.
+     * Shouldn't be called concurrently with appends.
+     */
+    public void read(Consumer<byte[]> consumer) throws IOException {
+        read((position, payload) -> consumer.accept(payload));
+    }
+
+    /**
+     * Reads all records of the journal with their positions, in the order
+     * they were appended. Shouldn't be called concurrently with appends.
+     */
+    public void read(RecordConsumer consumer) throws IOException {
+        for (Path p : segments(dir)) {
+            long base = (long) indexOf(p) * segmentSize;
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                scan(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()),
+                        (offset, payload) -> consumer.accept(base + offset, payload));
+            }
+        }
+    }
+
+    /**
+     * Reads a single record. Can be called concurrently with appends.
+     *
+     * @param position the record's position as returned by {@link #append(byte[])}
+     *                 or {@link #read(RecordConsumer)}
+     */
+    public byte[] read(long position) throws IOException {
+        int idx = (int) (position / segmentSize);
+        int offset = (int) (position % segmentSize);
+
+        ByteBuffer b;
+        lock.lock();
+        try {
+            assertOpen();
+
+            if (idx == segmentIndex) {
+                if (offset >= buffer.position()) {
+                    throw new IOException("Invalid record position: " + position);
+                }
+                b = buffer.duplicate();
+            } else {
+                b = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (b == null) {
+            b = readOnlySegment(idx);
+        }
+
+        byte[] payload = readRecord(b, offset);
+        if (payload == null) {
+            throw new IOException("Invalid record at " + position);
+        }
+        return payload;
+    }
+
+    /**
+     * Starts a new segment, unless the current one is empty. Used to compact
+     * the journal: the live records are appended again after the returned position
+     * and the older segments are {@link #dropSegmentsBefore(long) dropped}.
+     *
+     * @return the position of the new segment's first record.
+     */
+    public long rollover() throws IOException {
+        lock.lock();
+        try {
+            assertOpen();
+
+            if (buffer.position() > 0) {
+                nextSegment();
+            }
+            return position();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the segments which end before the specified position, oldest first.
+     * The current segment is never removed. The records of the removed segments
+     * can no longer be {@link #read(long) read}.
+     *
+     * @param position usually the position returned by {@link #rollover()}
+     * @return number of removed segments.
+     */
+    public int dropSegmentsBefore(long position) throws IOException {
+        lock.lock();
+        try {
+            assertOpen();
+
+            int idx = (int) Math.min(position / segmentSize, segmentIndex);
+
+            int count = 0;
+            for (Path p : segments(dir)) {
+                int i = indexOf(p);
+                if (i >= idx) {
+                    break;
+                }
+
+                readOnlySegments.remove(i);
+                Files.delete(p);
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all records, e.g. after the recovered processes were saved elsewhere.
+     * Appenders {@link #sync(long) waiting} for the removed records fail.
+     */
+    public void truncate() throws IOException {
+        lock.lock();
+        try {
+            assertOpen();
+
+            channel.close();
+            for (Path p : segments(dir)) {
+                Files.delete(p);
+            }
+            readOnlySegments.clear();
+
+            truncatedFlushedPosition = flushedPosition;
+
+            openSegment(0);
+            writtenPosition = position();
+            flushedPosition = writtenPosition;
+            generation++;
+
+            // wake up the waiters of the removed records
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces all appended records to the disk and closes the journal.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            flushRequested.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        lock.lock();
+        try {
+            buffer.force();
+            channel.close();
+
+            flushedPosition = writtenPosition;
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        boolean failed = false;
+
+        while (true) {
+            MappedByteBuffer b;
+            long target;
+            long gen;
+
+            lock.lock();
+            try {
+                // don't retry a failed flush immediately, even if somebody waits
+                long pause = failed ? flushIntervalNanos : 0;
+                while (pause > 0 && !closed) {
+                    pause = flushRequested.awaitNanos(pause);
+                }
+
+                // flush when somebody waits or periodically
+                while (!closed) {
+                    if (writtenPosition > flushedPosition && waiters > 0) {
+                        break;
+                    }
+
+                    if (flushRequested.awaitNanos(flushIntervalNanos) <= 0 && writtenPosition > flushedPosition) {
+                        break;
+                    }
+                }
+
+                if (closed) {
+                    return;
+                }
+
+                // let more appenders join the batch
+                long delay = groupCommitDelayNanos;
+                while (delay > 0 && !closed) {
+                    delay = flushRequested.awaitNanos(delay);
+                }
+
+                b = buffer;
+                target = writtenPosition;
+                gen = generation;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                b.force();
+            } catch (RuntimeException e) {
+                // force() reports I/O errors as unchecked exceptions
+                error = new IOException(e);
+                log.error("flushLoop -> error while flushing the journal", e);
+            }
+            failed = error != null;
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    flushFailures++;
+                    flushError = error;
+                } else {
+                    flushError = null;
+                    if (gen == generation && target > flushedPosition) {
+                        flushedPosition = target;
+                    }
+                }
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private long position() {
+        return (long) segmentIndex * segmentSize + buffer.position();
+    }
+
+    /**
+     * Switches to the next segment, the current one is forced to the disk first.
+     */
+    private void nextSegment() throws IOException {
+        buffer.force();
+        channel.close();
+
+        openSegment(segmentIndex + 1);
+    }
+
+    private void openSegment(int idx) throws IOException {
+        Path p = segmentPath(idx);
+
+        channel = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segmentIndex = idx;
+    }
+
+    private void assertOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The journal is closed");
+        }
+    }
+
+    private ByteBuffer readOnlySegment(int idx) throws IOException {
+        MappedByteBuffer b = readOnlySegments.get(idx);
+        if (b != null) {
+            return b.duplicate();
+        }
+
+        Path p = segmentPath(idx);
+        if (!Files.exists(p)) {
+            throw new IOException("Segment not found: " + p);
+        }
+
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+
+        MappedByteBuffer prev = readOnlySegments.putIfAbsent(idx, b);
+        return (prev != null ? prev : b).duplicate();
+    }
+
+    private Path segmentPath(int idx) {
+        return dir.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, idx, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Reads the valid records of a segment.
+     *
+     * @return the position after the last valid record.
+     */
+    private static int scan(ByteBuffer b, RecordConsumer consumer) {
+        int pos = 0;
+        while (true) {
+            byte[] payload = readRecord(b, pos);
+            if (payload == null) {
+                break;
+            }
+
+            if (consumer != null) {
+                consumer.accept(pos, payload);
+            }
+
+            pos += HEADER_SIZE + payload.length;
+        }
+        return pos;
+    }
+
+    /**
+     * @return the record's payload or {@code null} if there's no valid record at the position.
+     */
+    private static byte[] readRecord(ByteBuffer b, int pos) {
+        if (pos < 0 || pos + HEADER_SIZE > b.limit()) {
+            return null;
+        }
+
+        int length = b.getInt(pos);
+        if (length <= 0 || length > b.limit() - pos - HEADER_SIZE) {
+            return null;
+        }
+
+        int checksum = b.getInt(pos + 4);
+
+        byte[] payload = new byte[length];
+        ByteBuffer d = b.duplicate();
+        d.position(pos + HEADER_SIZE);
+        d.get(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+            log.warn("readRecord -> invalid checksum at {}", pos);
+            return null;
+        }
+
+        return payload;
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path p : ds) {
+                result.add(p);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static int indexOf(Path segment) {
+        String n = segment.getFileName().toString();
+        return Integer.parseInt(n.substring(SEGMENT_PREFIX.length(), n.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    public interface RecordConsumer {
+
+        void accept(long position, byte[] payload);
+    }
+
+    public enum SyncMode {
+
+        /**
+         * {@link #append(byte[])} returns immediately, the records are
+         * forced to the disk periodically. Records appended shortly
+         * before a crash can be lost.
+         */
+        ASYNC,
+
+        /**
+         * {@link #append(byte[])} blocks until the record is forced to the disk.
+         * Concurrent appends are committed together.
+         */
+        SYNC
+    }
+
+    public static class Builder {
+
+        private final Path dir;
+        private int segmentSize = 64 * 1024 * 1024;
+        private SyncMode syncMode = SyncMode.SYNC;
+        private long flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(100);
+        private long groupCommitDelayNanos = 0;
+
+        public Builder(Path dir) {
+            this.dir = dir;
+        }
+
+        /**
+         * Size of the segment files. Must not be changed for an existing
+         * journal, the records' positions depend on it.
+         */
+        public Builder withSegmentSize(int segmentSize) {
+            if (segmentSize < 1024) {
+                throw new IllegalArgumentException("Segment size is too small: " + segmentSize);
+            }
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        public Builder withSyncMode(SyncMode syncMode) {
+            this.syncMode = syncMode;
+            return this;
+        }
+
+        /**
+         * How often the records nobody waits for (e.g. in the {@link SyncMode#ASYNC} mode)
+         * are forced to the disk.
+         */
+        public Builder withFlushInterval(long time, TimeUnit unit) {
+            this.flushIntervalNanos = unit.toNanos(time);
+            return this;
+        }
+
+        /**
+         * Delays each fsync to let more concurrent appenders join the batch.
+         * Trades the latency of a single append for fewer fsyncs under load.
+         * Zero by default: the batch consists of the records appended while
+         * the previous fsync was running.
+         */
+        public Builder withGroupCommitDelay(long time, TimeUnit unit) {
+            this.groupCommitDelayNanos = unit.toNanos(time);
+            return this;
+        }
+
+        public Journal build() throws IOException {
+            return new Journal(this);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.github.ibodrov.simpleflowengine.journal;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import com.github.ibodrov.simpleflowengine.RuntimeListener;
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.State.Status;
+import com.github.ibodrov.simpleflowengine.StateDelta;
+import com.github.ibodrov.simpleflowengine.StateDelta.Node;
+import com.github.ibodrov.simpleflowengine.StateId;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+import com.github.ibodrov.simpleflowengine.commands.Fork;
+import com.github.ibodrov.simpleflowengine.serialization.StateSerializer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the transitions of processes into a {@link Journal}, so the processes
+ * can be {@link #recover(Journal, StateSerializer) recovered} after a crash.
+ * <p>
+ * Each record is a {@link StateDelta} with copies of the states affected
+ * by the transition: the root of a started process, the child of a fork,
+ * a suspended or completed state, the owner of a resumed event. The forking
+ * parent is recorded once per batch of forks (e.g. a parallel block), before
+ * it executes its next command, so the size of the records is linear
+ * in the number of forks. Children forked after the last record of their
+ * parent are discarded on recovery, the parent forks them again.
+ * <p>
+ * With the {@link Journal.SyncMode#SYNC} journal the execution continues only
+ * after the transition is durable. The forks of a batch are committed together
+ * with the parent's record: the children start running right away, the parent
+ * continues once the whole batch is durable.
+ * <p>
+ * Journal errors are thrown as {@link UncheckedIOException} and fail the command
+ * which caused the transition. Errors while recording a completed state
+ * become the state's error, see {@link RuntimeListener#onDone(State)}.
+ */
+public class JournalListener implements RuntimeListener {
+
+    private final Journal journal;
+    private final StateSerializer serializer;
+
+    /**
+     * Parents which forked children since their last record.
+     */
+    private final Set<State> forking = ConcurrentHashMap.newKeySet();
+
+    public JournalListener(Journal journal, StateSerializer serializer) {
+        this.journal = journal;
+        this.serializer = serializer;
+    }
+
+    @Override
+    public void onStart(State root) {
+        record(root, Node.of(root));
+    }
+
+    @Override
+    public void onFork(State parent, State child) {
+        // the child's node has the parent's ID, the parent is recorded
+        // once the batch is over
+        write(child, Node.of(child));
+        forking.add(parent);
+    }
+
+    @Override
+    public void beforeCommand(Command cmd, State state) {
+        // called by the state's own thread, the forks of a parallel block
+        // are separate commands
+        if (cmd instanceof Fork || forking.isEmpty() || !forking.remove(state)) {
+            return;
+        }
+
+        record(state, Node.of(state));
+    }
+
+    @Override
+    public void onSuspend(State state) {
+        forking.remove(state);
+        record(state, Node.of(state));
+    }
+
+    @Override
+    public void onDone(State state) {
+        forking.remove(state);
+        record(state, Node.of(state));
+    }
+
+    @Override
+    public void onResume(State owner, String eventRef) {
+        // the owner is about to be scheduled
+        Node n = Node.of(owner);
+        record(owner, new Node(n.getId(), n.getParentId(), Status.READY, n.getEventRefs(), n.getStack(),
+                n.getLastError(), n.getPool(), n.getTimers(), n.getDeadline()));
+    }
+
+    /**
+     * Restores the processes recorded in the journal. Completed processes are
+     * skipped. Use {@link com.github.ibodrov.simpleflowengine.Engine#recover(State)}
+     * to continue the restored processes.
+     *
+     * @return the root states of the unfinished processes, in the order they were started.
+     */
+    public static List<State> recover(Journal journal, StateSerializer serializer) throws IOException {
+        Map<StateId, Map<StateId, Node>> trees = new LinkedHashMap<>();
+
+        // numbers of the first and the last records of each state
+        Map<StateId, Long> firstRecords = new HashMap<>();
+        Map<StateId, Long> lastRecords = new HashMap<>();
+        long[] seq = new long[1];
+
+        try {
+            journal.read(data -> {
+                StateDelta d;
+                try {
+                    d = serializer.deserializeDelta(data);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                long n = seq[0]++;
+
+                Map<StateId, Node> nodes = trees.computeIfAbsent(d.getRootId(), k -> new LinkedHashMap<>());
+                for (StateId id : d.getRemoved()) {
+                    nodes.remove(id);
+                }
+                for (Node node : d.getChanged()) {
+                    nodes.put(node.getId(), node);
+                    firstRecords.putIfAbsent(node.getId(), n);
+                    lastRecords.put(node.getId(), n);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        List<State> result = new ArrayList<>();
+        trees.forEach((rootId, nodes) -> {
+            discardUnknownChildren(nodes, firstRecords, lastRecords);
+
+            State root = new StateDelta(rootId, nodes.values(), new HashSet<>()).toState();
+            if (root.getStatus() != Status.DONE) {
+                result.add(root);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Removes the children (and their subtrees) forked after the last record of
+     * their parent: the recorded parent hasn't forked them yet and does it again.
+     */
+    private static void discardUnknownChildren(Map<StateId, Node> nodes,
+                                               Map<StateId, Long> firstRecords,
+                                               Map<StateId, Long> lastRecords) {
+
+        boolean changed = true;
+        while (changed) {
+            changed = nodes.values().removeIf(n -> {
+                StateId parentId = n.getParentId();
+                if (parentId == null) {
+                    return false;
+                }
+
+                return !nodes.containsKey(parentId)
+                        || firstRecords.get(n.getId()) > lastRecords.get(parentId);
+            });
+        }
+    }
+
+    /**
+     * Appends the record, in the {@link Journal.SyncMode#SYNC} mode waits
+     * for the record to become durable.
+     */
+    private void record(State state, Node... nodes) {
+        try {
+            journal.append(serialize(state, nodes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends the record without waiting, it becomes durable with the next
+     * {@link #record(State, Node...) record}.
+     */
+    private void write(State state, Node... nodes) {
+        try {
+            journal.write(serialize(state, nodes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private byte[] serialize(State state, Node... nodes) throws IOException {
+        StateDelta d = new StateDelta(state.getRoot().getId(), Arrays.asList(nodes), Collections.emptySet());
+        return serializer.serializeDelta(d);
+    }
+}
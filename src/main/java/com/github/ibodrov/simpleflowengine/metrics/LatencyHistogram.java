@@ -0,0 +1,156 @@
+package com.github.ibodrov.simpleflowengine.metrics;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations (in nanoseconds) with power-of-two buckets:
+ * bucket {@code i} counts values in range {@code [2^(i-1), 2^i)}, bucket {@code 0}
+ * counts zeros. Recording a value never blocks, concurrent updates are spread
+ * across {@link LongAdder} cells.
+ */
+public final class LatencyHistogram {
+
+    static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        buckets[bucket(nanos)].increment();
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * Returns a copy of the current values. The histogram can be updated
+     * concurrently, so the copy is not necessarily a consistent point-in-time view.
+     */
+    public Snapshot snapshot() {
+        long[] b = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            b[i] = buckets[i].sum();
+        }
+        return new Snapshot(b, count.sum(), sum.sum(), max.get());
+    }
+
+    static int bucket(long nanos) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    public static final class Snapshot {
+
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return total of all recorded values, in nanoseconds.
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @return counts of the buckets, see {@link LatencyHistogram}.
+         */
+        public long[] getBuckets() {
+            return buckets.clone();
+        }
+
+        /**
+         * Returns an upper estimate of the specified percentile: the upper bound
+         * of the bucket containing the percentile, but no more than {@link #getMax()}.
+         *
+         * @param p the percentile, from {@code 0.0} to {@code 1.0}
+         */
+        public long getPercentile(double p) {
+            if (p < 0 || p > 1) {
+                throw new IllegalArgumentException("Invalid percentile: " + p);
+            }
+
+            long total = 0;
+            for (long b : buckets) {
+                total += b;
+            }
+
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(p * total));
+
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    long upper = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                    return Math.min(upper, max);
+                }
+            }
+
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count +
+                    ", mean=" + (long) getMean() +
+                    ", p50=" + getPercentile(0.5) +
+                    ", p99=" + getPercentile(0.99) +
+                    ", max=" + max;
+        }
+    }
+}
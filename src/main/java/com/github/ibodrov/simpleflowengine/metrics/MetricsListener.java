@@ -0,0 +1,148 @@
+package com.github.ibodrov.simpleflowengine.metrics;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import com.github.ibodrov.simpleflowengine.RuntimeListener;
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the engine's metrics: latencies of commands (per command class),
+ * counters of the process lifecycle events and the executors' queue depth.
+ * <p>
+ * Lock-free: the hot paths only update {@link LongAdder} counters and
+ * {@link LatencyHistogram histograms}. Use {@link #snapshot()} to export
+ * the current values.
+ * <pre>
+ * MetricsListener metrics = new MetricsListener();
+ * Engine engine = new Engine.Builder().withListener(metrics).build();
+ * ...
+ * MetricsSnapshot s = metrics.snapshot();
+ * </pre>
+ */
+public class MetricsListener implements RuntimeListener {
+
+    /**
+     * Name used for the engine's default executor in {@link MetricsSnapshot#getQueueDepth()}.
+     */
+    public static final String DEFAULT_POOL = "default";
+
+    private final ConcurrentMap<Class<?>, LatencyHistogram> commandLatencies = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> queueDepth = new ConcurrentHashMap<>();
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+
+    private final LongAdder commandErrors = new LongAdder();
+    private final LongAdder starts = new LongAdder();
+    private final LongAdder resumes = new LongAdder();
+    private final LongAdder forks = new LongAdder();
+    private final LongAdder joins = new LongAdder();
+    private final LongAdder suspends = new LongAdder();
+
+    @Override
+    public void afterCommand(Command cmd, State state, long startTime, long endTime, Throwable error) {
+        latencyOf(cmd.getClass()).record(endTime - startTime);
+
+        if (error != null) {
+            commandErrors.increment();
+        }
+    }
+
+    @Override
+    public void onStart(State root) {
+        starts.increment();
+    }
+
+    @Override
+    public void onResume(State owner, String eventRef) {
+        resumes.increment();
+    }
+
+    @Override
+    public void onFork(State parent, State child) {
+        forks.increment();
+    }
+
+    @Override
+    public void onJoin(State state) {
+        joins.increment();
+    }
+
+    @Override
+    public void onSuspend(State state) {
+        suspends.increment();
+    }
+
+    @Override
+    public void onQueued(State state) {
+        queueDepthOf(state).increment();
+    }
+
+    @Override
+    public void onDequeued(State state, long queuedTime) {
+        queueDepthOf(state).decrement();
+        queueLatency.record(System.nanoTime() - queuedTime);
+    }
+
+    @Override
+    public void onRejected(State state, long queuedTime) {
+        // never picked up, not a sample of the queue latency
+        queueDepthOf(state).decrement();
+    }
+
+    public MetricsSnapshot snapshot() {
+        Map<String, LatencyHistogram.Snapshot> latencies = new HashMap<>(commandLatencies.size());
+        commandLatencies.forEach((k, v) -> latencies.put(k.getName(), v.snapshot()));
+
+        Map<String, Long> queues = new HashMap<>(queueDepth.size());
+        queueDepth.forEach((k, v) -> queues.put(k, v.sum()));
+
+        return new MetricsSnapshot(latencies, queueLatency.snapshot(), queues,
+                commandErrors.sum(), starts.sum(), resumes.sum(),
+                forks.sum(), joins.sum(), suspends.sum());
+    }
+
+    private LatencyHistogram latencyOf(Class<?> type) {
+        // avoid computeIfAbsent's locking on the hot path
+        LatencyHistogram h = commandLatencies.get(type);
+        if (h != null) {
+            return h;
+        }
+        return commandLatencies.computeIfAbsent(type, k -> new LatencyHistogram());
+    }
+
+    private LongAdder queueDepthOf(State state) {
+        String pool = state.getPool();
+        if (pool == null) {
+            pool = DEFAULT_POOL;
+        }
+
+        LongAdder a = queueDepth.get(pool);
+        if (a != null) {
+            return a;
+        }
+        return queueDepth.computeIfAbsent(pool, k -> new LongAdder());
+    }
+}
@@ -0,0 +1,121 @@
+package com.github.ibodrov.simpleflowengine.metrics;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Point-in-time copy of the values collected by {@link MetricsListener}.
+ * Durations are in nanoseconds.
+ */
+public final class MetricsSnapshot {
+
+    private final Map<String, LatencyHistogram.Snapshot> commandLatencies;
+    private final LatencyHistogram.Snapshot queueLatency;
+    private final Map<String, Long> queueDepth;
+    private final long commandErrors;
+    private final long starts;
+    private final long resumes;
+    private final long forks;
+    private final long joins;
+    private final long suspends;
+
+    MetricsSnapshot(Map<String, LatencyHistogram.Snapshot> commandLatencies,
+                    LatencyHistogram.Snapshot queueLatency,
+                    Map<String, Long> queueDepth,
+                    long commandErrors, long starts, long resumes,
+                    long forks, long joins, long suspends) {
+
+        this.commandLatencies = Collections.unmodifiableMap(new TreeMap<>(commandLatencies));
+        this.queueLatency = queueLatency;
+        this.queueDepth = Collections.unmodifiableMap(new TreeMap<>(queueDepth));
+        this.commandErrors = commandErrors;
+        this.starts = starts;
+        this.resumes = resumes;
+        this.forks = forks;
+        this.joins = joins;
+        this.suspends = suspends;
+    }
+
+    /**
+     * @return latencies of commands, by the command's class name.
+     */
+    public Map<String, LatencyHistogram.Snapshot> getCommandLatencies() {
+        return commandLatencies;
+    }
+
+    /**
+     * @return time spent by states in the executors' queues.
+     */
+    public LatencyHistogram.Snapshot getQueueLatency() {
+        return queueLatency;
+    }
+
+    /**
+     * @return number of states waiting in the executors' queues, by the pool name.
+     * @see MetricsListener#DEFAULT_POOL
+     */
+    public Map<String, Long> getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getCommandErrors() {
+        return commandErrors;
+    }
+
+    public long getStarts() {
+        return starts;
+    }
+
+    public long getResumes() {
+        return resumes;
+    }
+
+    public long getForks() {
+        return forks;
+    }
+
+    public long getJoins() {
+        return joins;
+    }
+
+    public long getSuspends() {
+        return suspends;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("MetricsSnapshot{");
+        sb.append("starts=").append(starts)
+                .append(", resumes=").append(resumes)
+                .append(", forks=").append(forks)
+                .append(", joins=").append(joins)
+                .append(", suspends=").append(suspends)
+                .append(", commandErrors=").append(commandErrors)
+                .append(", queueDepth=").append(queueDepth)
+                .append(", queueLatency={").append(queueLatency).append('}');
+
+        commandLatencies.forEach((k, v) -> sb.append(", ").append(k).append("={").append(v).append('}'));
+
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.ibodrov.simpleflowengine.program;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.RuntimeContext;
+import com.github.ibodrov.simpleflowengine.Stack;
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.StateId;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+import com.github.ibodrov.simpleflowengine.commands.Join;
+import com.github.ibodrov.simpleflowengine.commands.JoinPolicy;
+
+/**
+ * Executes a {@link Program} starting from the specified instruction.
+ * Stays on the stack until the {@link Program#END} instruction, each
+ * evaluation executes a single instruction and advances the program counter.
+ * <p>
+ * Commands from the program's constant pool are evaluated by the frame
+ * right away, one at a time: only the command being evaluated is on the stack
+ * above the frame. Parallel branches are spawned by the frame directly,
+ * each branch is executed by its own frame.
+ */
+public class Frame implements Command {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Program program;
+    private int pc;
+
+    public Frame(Program program, int pc) {
+        this.program = program;
+        this.pc = pc;
+    }
+
+    public Program getProgram() {
+        return program;
+    }
+
+    public int getPc() {
+        return pc;
+    }
+
+    @Override
+    public void eval(RuntimeContext ctx, State state) {
+        Stack<Command> stack = state.getStack();
+
+        int insn = program.code[pc];
+        int operand = Program.operand(insn);
+
+        switch (Program.opcode(insn)) {
+            case Program.CALL: {
+                pc++;
+
+                // commands expect to be on top of the stack when evaluated,
+                // the engine takes over if the command stays there
+                Command cmd = program.constants[operand];
+                stack.push(cmd);
+                ctx.eval(cmd, state);
+                break;
+            }
+            case Program.FORK: {
+                pc++;
+
+                int[] entries = program.forkTables[operand];
+                String pool = program.forkPools[operand];
+                int limit = program.forkLimits[operand];
+                long[] ids = new long[entries.length];
+
+                for (int i = 0; i < entries.length; i++) {
+                    StateId id = ctx.nextStateId();
+                    ids[i] = id.getValue();
+
+                    State child = new State(id);
+                    child.getStack().push(new Frame(program, entries[i]));
+                    child.setPool(pool != null ? pool : state.getPool());
+                    state.addChild(child);
+
+                    ctx.spawn(child, limit);
+                }
+
+                stack.push(new Join(ids, JoinPolicy.ALL));
+                break;
+            }
+            case Program.END: {
+                stack.pop();
+                break;
+            }
+            default: {
+                throw new IllegalStateException("Invalid instruction at " + pc + ": " + insn);
+            }
+        }
+    }
+}
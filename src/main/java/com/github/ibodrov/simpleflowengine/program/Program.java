@@ -0,0 +1,296 @@
+package com.github.ibodrov.simpleflowengine.program;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.commands.Block;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+import com.github.ibodrov.simpleflowengine.commands.JoinPolicy;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, pre-compiled form of a {@link Command} tree.
+ * <p>
+ * {@link Block Blocks} are lowered into a flat array of instructions:
+ * sequential blocks are simply inlined, parallel blocks become
+ * a {@link #FORK} instruction referencing a table of the branches' entry points.
+ * All other commands are stored in the constant pool and executed
+ * using {@link #CALL} instructions. Each branch (and the main program)
+ * ends with an {@link #END} instruction.
+ * <p>
+ * Programs are executed by {@link Frame frames}, so a state doesn't need
+ * to copy the block's commands onto its stack.
+ */
+public final class Program implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Executes the command from the constant pool. Operand: index of the command.
+     */
+    public static final int CALL = 1;
+
+    /**
+     * Forks the branches and waits for them. Operand: index of the fork table.
+     */
+    public static final int FORK = 2;
+
+    /**
+     * Ends the current branch.
+     */
+    public static final int END = 3;
+
+    /**
+     * The main program's entry point.
+     */
+    public static final int ENTRY = 0;
+
+    private static final int OPCODE_BITS = 8;
+    private static final int OPCODE_MASK = (1 << OPCODE_BITS) - 1;
+
+    final int[] code;
+    final Command[] constants;
+    final int[][] forkTables;
+    final String[] forkPools;
+    final int[] forkLimits;
+
+    /**
+     * @param code       instructions, see {@link #instruction(int, int)}
+     * @param constants  the constant pool
+     * @param forkTables entry points of the parallel branches
+     */
+    public Program(int[] code, Command[] constants, int[][] forkTables) {
+        this(code, constants, forkTables, new String[forkTables.length], new int[forkTables.length]);
+    }
+
+    /**
+     * @param forkPools  executor pools of the fork tables' branches, see {@link Block#getPool()}
+     * @param forkLimits concurrency limits of the fork tables, see {@link Block#getMaxConcurrency()}
+     */
+    public Program(int[] code, Command[] constants, int[][] forkTables, String[] forkPools, int[] forkLimits) {
+        this.code = code.clone();
+        this.constants = constants.clone();
+
+        this.forkTables = new int[forkTables.length][];
+        for (int i = 0; i < forkTables.length; i++) {
+            this.forkTables[i] = forkTables[i].clone();
+        }
+
+        this.forkPools = forkPools.clone();
+        this.forkLimits = forkLimits.clone();
+
+        validate();
+    }
+
+    /**
+     * Compiles the command tree.
+     */
+    public static Program compile(Command cmd) {
+        return new Compiler().compile(cmd);
+    }
+
+    public static int instruction(int opcode, int operand) {
+        return (operand << OPCODE_BITS) | opcode;
+    }
+
+    public static int opcode(int instruction) {
+        return instruction & OPCODE_MASK;
+    }
+
+    public static int operand(int instruction) {
+        return instruction >>> OPCODE_BITS;
+    }
+
+    public int[] getCode() {
+        return code.clone();
+    }
+
+    public Command[] getConstants() {
+        return constants.clone();
+    }
+
+    public int[][] getForkTables() {
+        int[][] result = new int[forkTables.length][];
+        for (int i = 0; i < forkTables.length; i++) {
+            result[i] = forkTables[i].clone();
+        }
+        return result;
+    }
+
+    public String[] getForkPools() {
+        return forkPools.clone();
+    }
+
+    public int[] getForkLimits() {
+        return forkLimits.clone();
+    }
+
+    private void validate() {
+        if (forkPools.length != forkTables.length || forkLimits.length != forkTables.length) {
+            throw new IllegalArgumentException("Fork pools and limits must match the fork tables");
+        }
+
+        for (int limit : forkLimits) {
+            if (limit < 0) {
+                throw new IllegalArgumentException("Invalid fork limit: " + limit);
+            }
+        }
+
+        for (int pc = 0; pc < code.length; pc++) {
+            int insn = code[pc];
+            int operand = operand(insn);
+
+            switch (opcode(insn)) {
+                case CALL: {
+                    if (operand >= constants.length) {
+                        throw new IllegalArgumentException("Invalid constant at " + pc + ": " + operand);
+                    }
+                    break;
+                }
+                case FORK: {
+                    if (operand >= forkTables.length) {
+                        throw new IllegalArgumentException("Invalid fork table at " + pc + ": " + operand);
+                    }
+                    break;
+                }
+                case END: {
+                    break;
+                }
+                default: {
+                    throw new IllegalArgumentException("Invalid instruction at " + pc + ": " + insn);
+                }
+            }
+        }
+
+        for (int[] table : forkTables) {
+            for (int entry : table) {
+                if (entry < 0 || entry >= code.length) {
+                    throw new IllegalArgumentException("Invalid entry point: " + entry);
+                }
+            }
+        }
+    }
+
+    private static final class Compiler {
+
+        private final List<Integer> code = new ArrayList<>();
+        private final List<Command> constants = new ArrayList<>();
+        private final Map<Command, Integer> constantIndex = new IdentityHashMap<>();
+        private final List<int[]> forkTables = new ArrayList<>();
+        private final List<String> forkPools = new ArrayList<>();
+        private final List<Integer> forkLimits = new ArrayList<>();
+
+        // parallel branches are compiled after the code that forks them
+        private final Deque<Branch> pending = new ArrayDeque<>();
+
+        Program compile(Command cmd) {
+            emit(cmd);
+            code.add(instruction(END, 0));
+
+            while (!pending.isEmpty()) {
+                Branch b = pending.poll();
+                forkTables.get(b.table)[b.index] = code.size();
+
+                emit(b.command);
+                code.add(instruction(END, 0));
+            }
+
+            int[] result = new int[code.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = code.get(i);
+            }
+
+            int[] limits = new int[forkLimits.size()];
+            for (int i = 0; i < limits.length; i++) {
+                limits[i] = forkLimits.get(i);
+            }
+
+            return new Program(result, constants.toArray(new Command[0]), forkTables.toArray(new int[0][]),
+                    forkPools.toArray(new String[0]), limits);
+        }
+
+        private void emit(Command cmd) {
+            // blocks with timeouts or non-default join policies are left to the interpreter
+            if (!(cmd instanceof Block) || isInterpreted((Block) cmd)) {
+                code.add(instruction(CALL, constant(cmd)));
+                return;
+            }
+
+            Block b = (Block) cmd;
+            List<Command> commands = b.getCommands();
+
+            switch (b.getStrategy()) {
+                case SEQUENTIAL: {
+                    for (Command c : commands) {
+                        emit(c);
+                    }
+                    break;
+                }
+                case PARALLEL: {
+                    int table = forkTables.size();
+                    forkTables.add(new int[commands.size()]);
+                    forkPools.add(b.getPool());
+                    forkLimits.add(b.getMaxConcurrency());
+
+                    for (int i = 0; i < commands.size(); i++) {
+                        pending.add(new Branch(table, i, commands.get(i)));
+                    }
+
+                    code.add(instruction(FORK, table));
+                    break;
+                }
+                default: {
+                    throw new IllegalStateException("Unknown block strategy: " + b.getStrategy());
+                }
+            }
+        }
+
+        private static boolean isInterpreted(Block b) {
+            return b.getTimeout() > 0 || b.getJoinPolicy().getType() != JoinPolicy.Type.ALL;
+        }
+
+        private int constant(Command cmd) {
+            return constantIndex.computeIfAbsent(cmd, k -> {
+                constants.add(k);
+                return constants.size() - 1;
+            });
+        }
+    }
+
+    private static final class Branch {
+
+        private final int table;
+        private final int index;
+        private final Command command;
+
+        private Branch(int table, int index, Command command) {
+            this.table = table;
+            this.index = index;
+            this.command = command;
+        }
+    }
+}
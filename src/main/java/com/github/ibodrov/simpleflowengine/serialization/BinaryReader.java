@@ -0,0 +1,207 @@
+package com.github.ibodrov.simpleflowengine.serialization;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.StateId;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Input of the {@link BinaryStateSerializer binary format}.
+ *
+ * @see BinaryWriter
+ */
+public final class BinaryReader {
+
+    private final CommandCodecRegistry registry;
+    private final List<String> strings = new ArrayList<>();
+    private final List<Command> commands = new ArrayList<>();
+    private final List<Object> shared = new ArrayList<>();
+
+    private final byte[] buf;
+    private int pos;
+
+    private long baseId;
+
+    BinaryReader(CommandCodecRegistry registry, byte[] buf) {
+        this.registry = registry;
+        this.buf = buf;
+    }
+
+    void setBaseId(long baseId) {
+        this.baseId = baseId;
+    }
+
+    public int readByte() throws IOException {
+        if (pos >= buf.length) {
+            throw new EOFException();
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public int readVarInt() throws IOException {
+        long v = readVarLong();
+        if (v > 0xFFFFFFFFL) {
+            throw new StreamCorruptedException("Invalid varint: " + v);
+        }
+        return (int) v;
+    }
+
+    public long readVarLong() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    public long readZigZagLong() throws IOException {
+        long v = readVarLong();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public byte[] readBytes() throws IOException {
+        int len = readVarInt();
+        if (len < 0 || len > buf.length - pos) {
+            throw new EOFException();
+        }
+
+        byte[] b = new byte[len];
+        System.arraycopy(buf, pos, b, 0, len);
+        pos += len;
+        return b;
+    }
+
+    public String readString() throws IOException {
+        int ref = readVarInt();
+        if (ref == 0) {
+            return null;
+        }
+
+        if (ref == 1) {
+            String s = new String(readBytes(), StandardCharsets.UTF_8);
+            strings.add(s);
+            return s;
+        }
+
+        return lookup(strings, ref - 2);
+    }
+
+    public StateId readStateId() throws IOException {
+        return new StateId(readStateIdValue());
+    }
+
+    /**
+     * Reads a {@link StateId#getValue() value} of a state ID.
+     */
+    public long readStateIdValue() throws IOException {
+        return baseId + readZigZagLong();
+    }
+
+    public Command readCommand() throws IOException {
+        int ref = readVarInt();
+        if (ref == 0) {
+            return null;
+        }
+
+        if (ref != 1) {
+            return lookup(commands, ref - 2);
+        }
+
+        // reserve the command's index, nested commands are numbered after it
+        int idx = commands.size();
+        commands.add(null);
+
+        String name = readString();
+
+        Command cmd;
+        if (CommandCodecRegistry.JAVA_SERIALIZATION.equals(name)) {
+            cmd = (Command) readSerializable();
+        } else {
+            CommandCodecRegistry.Entry<?> e = registry.forName(name);
+            if (e == null) {
+                throw new StreamCorruptedException("Unknown command codec: " + name);
+            }
+            cmd = e.getCodec().read(this);
+        }
+
+        commands.set(idx, cmd);
+        return cmd;
+    }
+
+    /**
+     * @see BinaryWriter#writeShared(Object, BinaryWriter.Encoder)
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T readShared(Decoder<T> decoder) throws IOException {
+        int ref = readVarInt();
+        if (ref != 0) {
+            return (T) lookup(shared, ref - 1);
+        }
+
+        int idx = shared.size();
+        shared.add(null);
+
+        T value = decoder.decode(this);
+        shared.set(idx, value);
+        return value;
+    }
+
+    public Object readSerializable() throws IOException {
+        if (!readBoolean()) {
+            return null;
+        }
+
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(readBytes()))) {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public interface Decoder<T> {
+
+        T decode(BinaryReader in) throws IOException;
+    }
+
+    private static <T> T lookup(List<T> l, int idx) throws IOException {
+        if (idx >= l.size()) {
+            throw new StreamCorruptedException("Invalid reference: " + idx);
+        }
+        return l.get(idx);
+    }
+}
@@ -0,0 +1,301 @@
+package com.github.ibodrov.simpleflowengine.serialization;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.State.Status;
+import com.github.ibodrov.simpleflowengine.StateDelta;
+import com.github.ibodrov.simpleflowengine.StateId;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.*;
+
+/**
+ * Compact binary format for {@link State} trees.
+ * <p>
+ * The format consists of a header (magic bytes, format version and the root's ID)
+ * followed by the states written depth-first:
+ * <pre>
+ * state := id status eventRefs stack lastError pool timers deadline children
+ * </pre>
+ * State IDs are written as variable-length deltas relative to the root's ID.
+ * EventRefs and command codec names are interned, see {@link BinaryWriter}.
+ * Commands are written using the codecs from {@link CommandCodecRegistry}.
+ * <p>
+ * {@link StateDelta Deltas} use a separate header followed by the changed
+ * states (without children, but with their parent IDs) and the removed IDs:
+ * <pre>
+ * delta := count (id parentId status eventRefs stack lastError pool timers deadline)* count (id)*
+ * </pre>
+ */
+public class BinaryStateSerializer implements StateSerializer {
+
+    private static final byte[] MAGIC = {'S', 'F', 'E'};
+    private static final byte[] DELTA_MAGIC = {'S', 'F', 'D'};
+    private static final int VERSION = 5;
+
+    private final CommandCodecRegistry registry;
+
+    public BinaryStateSerializer() {
+        this(CommandCodecRegistry.withDefaults());
+    }
+
+    public BinaryStateSerializer(CommandCodecRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public byte[] serialize(State state) throws IOException {
+        BinaryWriter out = new BinaryWriter(registry);
+        writeHeader(MAGIC, state.getId(), out);
+
+        writeState(state, out);
+
+        return out.toByteArray();
+    }
+
+    @Override
+    public State deserialize(byte[] data) throws IOException {
+        BinaryReader in = new BinaryReader(registry, data);
+        readHeader(MAGIC, in);
+
+        return readState(null, in);
+    }
+
+    @Override
+    public byte[] serializeDelta(StateDelta delta) throws IOException {
+        BinaryWriter out = new BinaryWriter(registry);
+        writeHeader(DELTA_MAGIC, delta.getRootId(), out);
+
+        Collection<StateDelta.Node> changed = delta.getChanged();
+        out.writeVarInt(changed.size());
+        for (StateDelta.Node n : changed) {
+            out.writeStateId(n.getId());
+
+            boolean hasParent = n.getParentId() != null;
+            out.writeBoolean(hasParent);
+            if (hasParent) {
+                out.writeStateId(n.getParentId());
+            }
+
+            writeBody(n.getStatus(), n.getEventRefs(), n.getStack(), n.getLastError(), n.getPool(), n.getTimers(),
+                    n.getDeadline(), out);
+        }
+
+        Set<StateId> removed = delta.getRemoved();
+        out.writeVarInt(removed.size());
+        for (StateId id : removed) {
+            out.writeStateId(id);
+        }
+
+        return out.toByteArray();
+    }
+
+    @Override
+    public StateDelta deserializeDelta(byte[] data) throws IOException {
+        BinaryReader in = new BinaryReader(registry, data);
+        StateId rootId = readHeader(DELTA_MAGIC, in);
+
+        int count = in.readVarInt();
+        List<StateDelta.Node> changed = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StateId id = in.readStateId();
+            StateId parentId = in.readBoolean() ? in.readStateId() : null;
+
+            Status status = decode(in.readByte());
+
+            int eventRefCount = in.readVarInt();
+            Set<String> eventRefs = new HashSet<>(eventRefCount);
+            for (int j = 0; j < eventRefCount; j++) {
+                eventRefs.add(in.readString());
+            }
+
+            int stackSize = in.readVarInt();
+            List<Command> stack = new ArrayList<>(stackSize);
+            for (int j = 0; j < stackSize; j++) {
+                stack.add(in.readCommand());
+            }
+
+            Throwable lastError = (Throwable) in.readSerializable();
+            String pool = in.readString();
+            Map<String, Long> timers = readTimers(in);
+            long deadline = in.readVarLong();
+
+            changed.add(new StateDelta.Node(id, parentId, status, eventRefs, stack, lastError, pool, timers,
+                    deadline));
+        }
+
+        count = in.readVarInt();
+        Set<StateId> removed = new HashSet<>(count);
+        for (int i = 0; i < count; i++) {
+            removed.add(in.readStateId());
+        }
+
+        return new StateDelta(rootId, changed, removed);
+    }
+
+    private static void writeHeader(byte[] magic, StateId rootId, BinaryWriter out) {
+        for (byte b : magic) {
+            out.writeByte(b);
+        }
+        out.writeByte(VERSION);
+
+        long baseId = rootId.getValue();
+        out.writeVarLong(baseId);
+        out.setBaseId(baseId);
+    }
+
+    private static StateId readHeader(byte[] magic, BinaryReader in) throws IOException {
+        for (byte b : magic) {
+            if (in.readByte() != b) {
+                throw new StreamCorruptedException("Invalid header");
+            }
+        }
+
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported format version: " + version);
+        }
+
+        long baseId = in.readVarLong();
+        in.setBaseId(baseId);
+        return new StateId(baseId);
+    }
+
+    private static void writeState(State state, BinaryWriter out) throws IOException {
+        out.writeStateId(state.getId());
+        writeBody(state.getStatus(), state.getEventRefs(), state.getStack().toList(), state.getLastError(),
+                state.getPool(), state.getTimers(), state.getDeadline(), out);
+
+        Collection<State> children = state.getChildren();
+        out.writeVarInt(children.size());
+        for (State c : children) {
+            writeState(c, out);
+        }
+    }
+
+    private static void writeBody(Status status, Set<String> eventRefs, List<Command> stack, Throwable lastError,
+                                  String pool, Map<String, Long> timers, long deadline,
+                                  BinaryWriter out) throws IOException {
+
+        out.writeByte(encode(status));
+
+        out.writeVarInt(eventRefs.size());
+        for (String eventRef : eventRefs) {
+            out.writeString(eventRef);
+        }
+
+        out.writeVarInt(stack.size());
+        for (Command cmd : stack) {
+            out.writeCommand(cmd);
+        }
+
+        out.writeSerializable(lastError);
+        out.writeString(pool);
+
+        out.writeVarInt(timers.size());
+        for (Map.Entry<String, Long> e : timers.entrySet()) {
+            out.writeString(e.getKey());
+            out.writeZigZagLong(e.getValue());
+        }
+
+        out.writeVarLong(deadline);
+    }
+
+    private static Map<String, Long> readTimers(BinaryReader in) throws IOException {
+        int count = in.readVarInt();
+        if (count == 0) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Long> timers = new HashMap<>(count);
+        for (int i = 0; i < count; i++) {
+            String eventRef = in.readString();
+            timers.put(eventRef, in.readZigZagLong());
+        }
+        return timers;
+    }
+
+    private static State readState(State parent, BinaryReader in) throws IOException {
+        State state = new State(in.readStateId());
+
+        // attach to the parent first, so the eventRefs go straight into the root's index
+        if (parent != null) {
+            parent.addChild(state);
+        }
+
+        state.setStatus(decode(in.readByte()));
+
+        int eventRefs = in.readVarInt();
+        for (int i = 0; i < eventRefs; i++) {
+            state.addEventRef(in.readString());
+        }
+
+        int stack = in.readVarInt();
+        for (int i = 0; i < stack; i++) {
+            state.getStack().push(in.readCommand());
+        }
+
+        state.setLastError((Throwable) in.readSerializable());
+        state.setPool(in.readString());
+        readTimers(in).forEach(state::addTimer);
+        state.setDeadline(in.readVarLong());
+
+        int children = in.readVarInt();
+        for (int i = 0; i < children; i++) {
+            readState(state, in);
+        }
+
+        return state;
+    }
+
+    private static int encode(Status status) {
+        switch (status) {
+            case READY:
+                return 0;
+            case WAITING:
+                return 1;
+            case SUSPENDED:
+                return 2;
+            case DONE:
+                return 3;
+            default:
+                throw new IllegalArgumentException("Unknown status: " + status);
+        }
+    }
+
+    private static Status decode(int b) throws IOException {
+        switch (b) {
+            case 0:
+                return Status.READY;
+            case 1:
+                return Status.WAITING;
+            case 2:
+                return Status.SUSPENDED;
+            case 3:
+                return Status.DONE;
+            default:
+                throw new StreamCorruptedException("Unknown status: " + b);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.github.ibodrov.simpleflowengine.serialization;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.StateId;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Output of the {@link BinaryStateSerializer binary format}.
+ * <p>
+ * Strings (including the codec names) are interned: each unique string
+ * is written only once, subsequent occurrences are written as references.
+ * The same applies to commands - a command instance referenced from multiple
+ * places is written only once.
+ */
+public final class BinaryWriter {
+
+    private final CommandCodecRegistry registry;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<Command, Integer> commands = new IdentityHashMap<>();
+    private final Map<Object, Integer> shared = new IdentityHashMap<>();
+
+    private byte[] buf = new byte[256];
+    private int pos;
+
+    private long baseId;
+
+    BinaryWriter(CommandCodecRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Sets the value used to encode {@link StateId state IDs} as (small) deltas.
+     */
+    void setBaseId(long baseId) {
+        this.baseId = baseId;
+    }
+
+    public void writeByte(int b) {
+        ensureCapacity(1);
+        buf[pos++] = (byte) b;
+    }
+
+    public void writeBoolean(boolean b) {
+        writeByte(b ? 1 : 0);
+    }
+
+    /**
+     * Writes an unsigned variable-length integer.
+     */
+    public void writeVarInt(int v) {
+        writeVarLong(v & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Writes an unsigned variable-length long.
+     */
+    public void writeVarLong(long v) {
+        ensureCapacity(10);
+        while ((v & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+    }
+
+    /**
+     * Writes a signed variable-length long using the zig-zag encoding,
+     * i.e. small negative values take as little space as small positive values.
+     */
+    public void writeZigZagLong(long v) {
+        writeVarLong((v << 1) ^ (v >> 63));
+    }
+
+    public void writeBytes(byte[] b) {
+        writeVarInt(b.length);
+        ensureCapacity(b.length);
+        System.arraycopy(b, 0, buf, pos, b.length);
+        pos += b.length;
+    }
+
+    /**
+     * Writes an interned string. Accepts {@code null} values.
+     */
+    public void writeString(String s) {
+        if (s == null) {
+            writeVarInt(0);
+            return;
+        }
+
+        Integer ref = strings.get(s);
+        if (ref != null) {
+            writeVarInt(ref + 2);
+            return;
+        }
+
+        strings.put(s, strings.size());
+
+        writeVarInt(1);
+        writeBytes(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void writeStateId(StateId id) {
+        writeStateId(id.getValue());
+    }
+
+    /**
+     * Writes a {@link StateId#getValue() value} of a state ID.
+     */
+    public void writeStateId(long id) {
+        writeZigZagLong(id - baseId);
+    }
+
+    /**
+     * Writes a command using its registered {@link CommandCodec codec}.
+     * Accepts {@code null} values.
+     */
+    @SuppressWarnings("unchecked")
+    public void writeCommand(Command cmd) throws IOException {
+        if (cmd == null) {
+            writeVarInt(0);
+            return;
+        }
+
+        Integer ref = commands.get(cmd);
+        if (ref != null) {
+            writeVarInt(ref + 2);
+            return;
+        }
+
+        commands.put(cmd, commands.size());
+        writeVarInt(1);
+
+        CommandCodecRegistry.Entry<Command> e = (CommandCodecRegistry.Entry<Command>) registry.forType(cmd.getClass());
+        if (e == null) {
+            writeString(CommandCodecRegistry.JAVA_SERIALIZATION);
+            writeSerializable(cmd);
+            return;
+        }
+
+        writeString(e.getName());
+        e.getCodec().write(cmd, this);
+    }
+
+    /**
+     * Writes an object which can be referenced from multiple places
+     * (e.g. a program shared by multiple commands). Each instance is written
+     * only once, subsequent occurrences are written as references.
+     */
+    public <T> void writeShared(T value, Encoder<T> encoder) throws IOException {
+        Integer ref = shared.get(value);
+        if (ref != null) {
+            writeVarInt(ref + 1);
+            return;
+        }
+
+        shared.put(value, shared.size());
+
+        writeVarInt(0);
+        encoder.encode(value, this);
+    }
+
+    /**
+     * Writes an arbitrary object using the standard Java serialization.
+     * Accepts {@code null} values.
+     */
+    public void writeSerializable(Object o) throws IOException {
+        if (o == null) {
+            writeBoolean(false);
+            return;
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(baos)) {
+            out.writeObject(o);
+        }
+
+        writeBoolean(true);
+        writeBytes(baos.toByteArray());
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, pos);
+    }
+
+    public interface Encoder<T> {
+
+        void encode(T value, BinaryWriter out) throws IOException;
+    }
+
+    private void ensureCapacity(int n) {
+        if (pos + n <= buf.length) {
+            return;
+        }
+
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+    }
+}
@@ -0,0 +1,367 @@
+package com.github.ibodrov.simpleflowengine.serialization;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.StateId;
+import com.github.ibodrov.simpleflowengine.commands.*;
+import com.github.ibodrov.simpleflowengine.program.Frame;
+import com.github.ibodrov.simpleflowengine.program.Program;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Codecs of the built-in commands.
+ */
+final class BuiltInCodecs {
+
+    static void registerAll(CommandCodecRegistry r) {
+        r.register("block", Block.class, new BlockCodec());
+        r.register("eval", EvalCommand.class, new EvalCommandCodec());
+        r.register("fork", Fork.class, new ForkCodec());
+        r.register("frame", Frame.class, new FrameCodec());
+        r.register("join", Join.class, new JoinCodec());
+        r.register("parallelForEach", ParallelForEach.class, new ParallelForEachCodec());
+        r.register("parallelForEachProgress", ParallelForEach.Progress.class, new ParallelForEachProgressCodec());
+        r.register("parallelForEachWorker", ParallelForEach.Worker.class, new ParallelForEachWorkerCodec());
+        r.register("suspend", Suspend.class, new SuspendCodec());
+        r.register("suspendUntil", SuspendUntil.class, new SuspendUntilCodec());
+        r.register("timer", Timer.class, new TimerCodec());
+    }
+
+    private static final class BlockCodec implements CommandCodec<Block> {
+
+        @Override
+        public void write(Block command, BinaryWriter out) throws IOException {
+            out.writeString(command.getStrategy().name());
+
+            List<Command> commands = command.getCommands();
+            out.writeVarInt(commands.size());
+            for (Command c : commands) {
+                out.writeCommand(c);
+            }
+
+            out.writeString(command.getPool());
+            out.writeVarInt(command.getMaxConcurrency());
+            out.writeVarLong(command.getTimeout());
+            writeJoinPolicy(command.getJoinPolicy(), out);
+        }
+
+        @Override
+        public Block read(BinaryReader in) throws IOException {
+            Block.Strategy strategy = Block.Strategy.valueOf(in.readString());
+
+            int size = in.readVarInt();
+            List<Command> commands = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                commands.add(in.readCommand());
+            }
+
+            String pool = in.readString();
+            int maxConcurrency = in.readVarInt();
+            long timeout = in.readVarLong();
+            return new Block(strategy, commands, pool, maxConcurrency, timeout, readJoinPolicy(in));
+        }
+    }
+
+    private static final class EvalCommandCodec implements CommandCodec<EvalCommand> {
+
+        @Override
+        public void write(EvalCommand command, BinaryWriter out) throws IOException {
+            out.writeCommand(command.getCommand());
+        }
+
+        @Override
+        public EvalCommand read(BinaryReader in) throws IOException {
+            return new EvalCommand(in.readCommand());
+        }
+    }
+
+    private static final class ForkCodec implements CommandCodec<Fork> {
+
+        @Override
+        public void write(Fork command, BinaryWriter out) throws IOException {
+            out.writeStateId(command.getId());
+            out.writeCommand(command.getCommand());
+            out.writeString(command.getPool());
+            out.writeVarInt(command.getMaxConcurrency());
+            out.writeVarLong(command.getDeadline());
+        }
+
+        @Override
+        public Fork read(BinaryReader in) throws IOException {
+            StateId id = in.readStateId();
+            Command cmd = in.readCommand();
+            String pool = in.readString();
+            int maxConcurrency = in.readVarInt();
+            return new Fork(id, cmd, pool, maxConcurrency, in.readVarLong());
+        }
+    }
+
+    private static final class FrameCodec implements CommandCodec<Frame> {
+
+        @Override
+        public void write(Frame command, BinaryWriter out) throws IOException {
+            out.writeShared(command.getProgram(), FrameCodec::writeProgram);
+            out.writeVarInt(command.getPc());
+        }
+
+        @Override
+        public Frame read(BinaryReader in) throws IOException {
+            Program program = in.readShared(FrameCodec::readProgram);
+            return new Frame(program, in.readVarInt());
+        }
+
+        private static void writeProgram(Program program, BinaryWriter out) throws IOException {
+            int[] code = program.getCode();
+            out.writeVarInt(code.length);
+            for (int insn : code) {
+                out.writeVarInt(insn);
+            }
+
+            Command[] constants = program.getConstants();
+            out.writeVarInt(constants.length);
+            for (Command c : constants) {
+                out.writeCommand(c);
+            }
+
+            int[][] forkTables = program.getForkTables();
+            out.writeVarInt(forkTables.length);
+            for (int[] table : forkTables) {
+                out.writeVarInt(table.length);
+                for (int entry : table) {
+                    out.writeVarInt(entry);
+                }
+            }
+
+            for (String pool : program.getForkPools()) {
+                out.writeString(pool);
+            }
+
+            for (int limit : program.getForkLimits()) {
+                out.writeVarInt(limit);
+            }
+        }
+
+        private static Program readProgram(BinaryReader in) throws IOException {
+            int[] code = new int[in.readVarInt()];
+            for (int i = 0; i < code.length; i++) {
+                code[i] = in.readVarInt();
+            }
+
+            Command[] constants = new Command[in.readVarInt()];
+            for (int i = 0; i < constants.length; i++) {
+                constants[i] = in.readCommand();
+            }
+
+            int[][] forkTables = new int[in.readVarInt()][];
+            for (int i = 0; i < forkTables.length; i++) {
+                int[] table = new int[in.readVarInt()];
+                for (int j = 0; j < table.length; j++) {
+                    table[j] = in.readVarInt();
+                }
+                forkTables[i] = table;
+            }
+
+            String[] forkPools = new String[forkTables.length];
+            for (int i = 0; i < forkPools.length; i++) {
+                forkPools[i] = in.readString();
+            }
+
+            int[] forkLimits = new int[forkTables.length];
+            for (int i = 0; i < forkLimits.length; i++) {
+                forkLimits[i] = in.readVarInt();
+            }
+
+            try {
+                return new Program(code, constants, forkTables, forkPools, forkLimits);
+            } catch (IllegalArgumentException e) {
+                throw new StreamCorruptedException("Invalid program: " + e.getMessage());
+            }
+        }
+    }
+
+    private static final class JoinCodec implements CommandCodec<Join> {
+
+        @Override
+        public void write(Join command, BinaryWriter out) throws IOException {
+            long[] ids = command.getIds();
+            out.writeVarInt(ids.length);
+            for (long id : ids) {
+                out.writeStateId(id);
+            }
+
+            writeJoinPolicy(command.getPolicy(), out);
+        }
+
+        @Override
+        public Join read(BinaryReader in) throws IOException {
+            long[] ids = new long[in.readVarInt()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = in.readStateIdValue();
+            }
+            return new Join(ids, readJoinPolicy(in));
+        }
+    }
+
+    private static final class ParallelForEachCodec implements CommandCodec<ParallelForEach> {
+
+        @Override
+        public void write(ParallelForEach command, BinaryWriter out) throws IOException {
+            List<Command> commands = command.getCommands();
+            out.writeVarInt(commands.size());
+            for (Command c : commands) {
+                out.writeCommand(c);
+            }
+
+            out.writeVarInt(command.getChunkSize());
+            out.writeVarInt(command.getParallelism());
+            out.writeString(command.getPool());
+        }
+
+        @Override
+        public ParallelForEach read(BinaryReader in) throws IOException {
+            int size = in.readVarInt();
+            List<Command> commands = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                commands.add(in.readCommand());
+            }
+
+            int chunkSize = in.readVarInt();
+            int parallelism = in.readVarInt();
+            String pool = in.readString();
+
+            try {
+                return new ParallelForEach(commands, chunkSize, parallelism, pool);
+            } catch (IllegalArgumentException e) {
+                throw new StreamCorruptedException("Invalid parallelForEach: " + e.getMessage());
+            }
+        }
+    }
+
+    private static final class ParallelForEachProgressCodec implements CommandCodec<ParallelForEach.Progress> {
+
+        @Override
+        public void write(ParallelForEach.Progress command, BinaryWriter out) throws IOException {
+            out.writeCommand(command.getCommand());
+            out.writeVarInt(command.getClaimed());
+
+            long[] workers = command.getWorkers();
+            out.writeVarInt(workers.length);
+            for (long id : workers) {
+                out.writeStateId(id);
+            }
+        }
+
+        @Override
+        public ParallelForEach.Progress read(BinaryReader in) throws IOException {
+            Command command = in.readCommand();
+            if (!(command instanceof ParallelForEach)) {
+                throw new StreamCorruptedException("Expected a parallelForEach, got: " + command);
+            }
+
+            int claimed = in.readVarInt();
+
+            long[] workers = new long[in.readVarInt()];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = in.readStateIdValue();
+            }
+
+            return new ParallelForEach.Progress((ParallelForEach) command, claimed, workers);
+        }
+    }
+
+    private static final class ParallelForEachWorkerCodec implements CommandCodec<ParallelForEach.Worker> {
+
+        @Override
+        public void write(ParallelForEach.Worker command, BinaryWriter out) {
+        }
+
+        @Override
+        public ParallelForEach.Worker read(BinaryReader in) {
+            return new ParallelForEach.Worker();
+        }
+    }
+
+    private static final class SuspendCodec implements CommandCodec<Suspend> {
+
+        @Override
+        public void write(Suspend command, BinaryWriter out) throws IOException {
+            out.writeString(command.getEventRef());
+        }
+
+        @Override
+        public Suspend read(BinaryReader in) throws IOException {
+            return new Suspend(in.readString());
+        }
+    }
+
+    private static final class SuspendUntilCodec implements CommandCodec<SuspendUntil> {
+
+        @Override
+        public void write(SuspendUntil command, BinaryWriter out) throws IOException {
+            out.writeString(command.getEventRef());
+            out.writeZigZagLong(command.getDeadline());
+        }
+
+        @Override
+        public SuspendUntil read(BinaryReader in) throws IOException {
+            String eventRef = in.readString();
+            return new SuspendUntil(eventRef, in.readZigZagLong());
+        }
+    }
+
+    private static final class TimerCodec implements CommandCodec<Timer> {
+
+        @Override
+        public void write(Timer command, BinaryWriter out) throws IOException {
+            out.writeString(command.getEventRef());
+            out.writeVarLong(command.getDelay());
+        }
+
+        @Override
+        public Timer read(BinaryReader in) throws IOException {
+            String eventRef = in.readString();
+            return new Timer(eventRef, in.readVarLong(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void writeJoinPolicy(JoinPolicy policy, BinaryWriter out) {
+        out.writeString(policy.getType().name());
+        out.writeVarInt(policy.getQuorum());
+    }
+
+    private static JoinPolicy readJoinPolicy(BinaryReader in) throws IOException {
+        String type = in.readString();
+        int quorum = in.readVarInt();
+        try {
+            return JoinPolicy.of(JoinPolicy.Type.valueOf(type), quorum);
+        } catch (IllegalArgumentException e) {
+            throw new StreamCorruptedException("Invalid join policy: " + type + "(" + quorum + ")");
+        }
+    }
+
+    private BuiltInCodecs() {
+    }
+}
@@ -0,0 +1,36 @@
+package com.github.ibodrov.simpleflowengine.serialization;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.commands.Command;
+
+import java.io.IOException;
+
+/**
+ * Writes and reads a specific type of {@link Command} using
+ * the {@link BinaryStateSerializer binary format}.
+ */
+public interface CommandCodec<T extends Command> {
+
+    void write(T command, BinaryWriter out) throws IOException;
+
+    T read(BinaryReader in) throws IOException;
+}
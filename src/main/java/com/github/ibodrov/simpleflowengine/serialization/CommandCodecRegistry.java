@@ -0,0 +1,103 @@
+package com.github.ibodrov.simpleflowengine.serialization;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.commands.Command;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps {@link Command} types to their {@link CommandCodec codecs}.
+ * Each codec is identified by a name which is stored in the serialized data
+ * instead of the class name, so the command classes can be renamed or moved
+ * without breaking the previously saved states.
+ * <p>
+ * Commands without a registered codec are written using the standard
+ * Java serialization.
+ */
+public class CommandCodecRegistry {
+
+    /**
+     * Reserved name for commands stored using the Java serialization.
+     */
+    public static final String JAVA_SERIALIZATION = "java";
+
+    private final Map<Class<?>, Entry<?>> byType = new ConcurrentHashMap<>();
+    private final Map<String, Entry<?>> byName = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new registry with codecs for all built-in commands.
+     */
+    public static CommandCodecRegistry withDefaults() {
+        CommandCodecRegistry r = new CommandCodecRegistry();
+        BuiltInCodecs.registerAll(r);
+        return r;
+    }
+
+    public <T extends Command> CommandCodecRegistry register(String name, Class<T> type, CommandCodec<T> codec) {
+        if (JAVA_SERIALIZATION.equals(name)) {
+            throw new IllegalArgumentException("Reserved codec name: " + name);
+        }
+
+        Entry<T> e = new Entry<>(name, codec);
+
+        if (byName.putIfAbsent(name, e) != null) {
+            throw new IllegalArgumentException("Codec is already registered: " + name);
+        }
+
+        byType.put(type, e);
+        return this;
+    }
+
+    /**
+     * @return the codec for the specified type or {@code null} if there's none.
+     */
+    Entry<?> forType(Class<?> type) {
+        return byType.get(type);
+    }
+
+    /**
+     * @return the codec with the specified name or {@code null} if there's none.
+     */
+    Entry<?> forName(String name) {
+        return byName.get(name);
+    }
+
+    static final class Entry<T extends Command> {
+
+        private final String name;
+        private final CommandCodec<T> codec;
+
+        private Entry(String name, CommandCodec<T> codec) {
+            this.name = name;
+            this.codec = codec;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        CommandCodec<T> getCodec() {
+            return codec;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.ibodrov.simpleflowengine.serialization;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.StateDelta;
+
+import java.io.*;
+
+/**
+ * Uses the standard Java serialization.
+ */
+public class JavaStateSerializer implements StateSerializer {
+
+    @Override
+    public byte[] serialize(State state) throws IOException {
+        return write(state);
+    }
+
+    @Override
+    public State deserialize(byte[] data) throws IOException {
+        return (State) read(data);
+    }
+
+    @Override
+    public byte[] serializeDelta(StateDelta delta) throws IOException {
+        return write(delta);
+    }
+
+    @Override
+    public StateDelta deserializeDelta(byte[] data) throws IOException {
+        return (StateDelta) read(data);
+    }
+
+    private static byte[] write(Object o) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(baos)) {
+            out.writeObject(o);
+        }
+        return baos.toByteArray();
+    }
+
+    private static Object read(byte[] data) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.ibodrov.simpleflowengine.serialization;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.StateDelta;
+
+import java.io.IOException;
+
+/**
+ * Converts {@link State} trees and {@link StateDelta deltas} to bytes and back.
+ */
+public interface StateSerializer {
+
+    byte[] serialize(State state) throws IOException;
+
+    State deserialize(byte[] data) throws IOException;
+
+    byte[] serializeDelta(StateDelta delta) throws IOException;
+
+    StateDelta deserializeDelta(byte[] data) throws IOException;
+}
@@ -0,0 +1,383 @@
+package com.github.ibodrov.simpleflowengine.store;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.StateId;
+import com.github.ibodrov.simpleflowengine.journal.Journal;
+import com.github.ibodrov.simpleflowengine.serialization.BinaryStateSerializer;
+import com.github.ibodrov.simpleflowengine.serialization.StateSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link StateStore} backed by memory-mapped segment files (see {@link Journal}).
+ * <p>
+ * Each save appends the serialized tree and the tree's eventRefs to the log,
+ * removals append tombstones. The positions of the latest versions and
+ * the eventRef to process index are kept in memory and rebuilt from the log
+ * when the store is opened. Recently saved or loaded trees are kept in
+ * an LRU cache as live objects, so consecutive resumes of the same process
+ * skip reading the log and deserializing the tree. While a tree is cached,
+ * {@link #load(StateId) loads} return the same object, the one which was
+ * saved last. Callers which change a loaded tree must save it (the engine
+ * does so under the process' lock), a tree which fails to save is evicted.
+ * <p>
+ * Superseded versions and removed processes stay in the log until
+ * it's {@link #compact() compacted}.
+ */
+public class FileStateStore implements StateStore, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(FileStateStore.class);
+
+    private static final int SAVE = 1;
+    private static final int REMOVE = 2;
+
+    private final Journal journal;
+    private final StateSerializer serializer;
+
+    private final ConcurrentMap<StateId, Long> positions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<StateId, Set<String>> eventRefs = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, StateId> eventIndex = new ConcurrentHashMap<>();
+    private final Map<StateId, State> cache;
+
+    /**
+     * Guards the reads of the log against the removal of the segments
+     * by {@link #compact()}.
+     */
+    private final ReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+
+    private FileStateStore(Journal journal, StateSerializer serializer, int cacheSize) throws IOException {
+        this.journal = journal;
+        this.serializer = serializer;
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<StateId, State>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StateId, State> eldest) {
+                return size() > cacheSize;
+            }
+        });
+
+        rebuildIndex();
+    }
+
+    /**
+     * Serializes the tree and appends it to the log. In the {@link Journal.SyncMode#SYNC}
+     * mode waits for the record to become durable outside of the store's monitor,
+     * so concurrent saves are committed together.
+     */
+    @Override
+    public void save(State root) throws IOException {
+        StateId id = root.getId();
+
+        Set<String> refs = new HashSet<>();
+        collectEventRefs(root, refs);
+
+        byte[] data = serializer.serialize(root);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length + 64);
+        try (DataOutputStream out = new DataOutputStream(baos)) {
+            out.writeByte(SAVE);
+            out.writeLong(id.getValue());
+            out.writeInt(refs.size());
+            for (String r : refs) {
+                out.writeUTF(r);
+            }
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        byte[] record = baos.toByteArray();
+
+        long pos;
+        synchronized (this) {
+            try {
+                pos = journal.write(record);
+            } catch (IOException | RuntimeException e) {
+                // the cached tree might have unsaved changes
+                cache.remove(id);
+                throw e;
+            }
+            index(id, pos, refs);
+
+            cache.put(id, root);
+        }
+
+        sync(pos);
+    }
+
+    @Override
+    public State load(StateId rootId) throws IOException {
+        State root = cache.get(rootId);
+        if (root != null) {
+            return root;
+        }
+
+        byte[] data = read(rootId);
+        if (data == null) {
+            return null;
+        }
+
+        root = serializer.deserialize(data);
+
+        // concurrent loads of the same tree share the first loaded copy
+        State prev = cache.putIfAbsent(rootId, root);
+        return prev != null ? prev : root;
+    }
+
+    @Override
+    public StateId findRoot(String eventRef) {
+        return eventIndex.get(eventRef);
+    }
+
+    @Override
+    public void remove(StateId rootId) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(16);
+        try (DataOutputStream out = new DataOutputStream(baos)) {
+            out.writeByte(REMOVE);
+            out.writeLong(rootId.getValue());
+        }
+
+        long pos;
+        synchronized (this) {
+            cache.remove(rootId);
+
+            if (!positions.containsKey(rootId)) {
+                return;
+            }
+
+            pos = journal.write(baos.toByteArray());
+            unindex(rootId);
+        }
+
+        sync(pos);
+    }
+
+    /**
+     * Rewrites the latest versions of the stored processes into a new segment
+     * of the log and removes the older segments, reclaiming the space taken
+     * by the superseded versions and the removed processes.
+     * <p>
+     * Can be called while the store is in use, e.g. periodically.
+     * Saves and removals wait for the compaction to finish.
+     *
+     * @return number of removed segments.
+     */
+    public synchronized int compact() throws IOException {
+        long start = journal.rollover();
+
+        long last = -1;
+        for (Map.Entry<StateId, Long> e : positions.entrySet()) {
+            last = journal.write(journal.read(e.getValue()));
+            e.setValue(last);
+        }
+
+        // the rewritten records must be durable before the old ones are gone
+        if (last >= 0) {
+            journal.sync(last);
+        }
+
+        int dropped;
+        segmentsLock.writeLock().lock();
+        try {
+            dropped = journal.dropSegmentsBefore(start);
+        } finally {
+            segmentsLock.writeLock().unlock();
+        }
+
+        log.info("compact -> {} process(es) rewritten, {} segment(s) removed", positions.size(), dropped);
+        return dropped;
+    }
+
+    private void sync(long position) throws IOException {
+        if (journal.getSyncMode() == Journal.SyncMode.SYNC) {
+            journal.sync(position);
+        }
+    }
+
+    /**
+     * @return number of stored processes.
+     */
+    public int size() {
+        return positions.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+
+    private void rebuildIndex() throws IOException {
+        try {
+            journal.read((position, payload) -> {
+                try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+                    int type = in.readByte();
+                    StateId id = new StateId(in.readLong());
+
+                    switch (type) {
+                        case SAVE: {
+                            int count = in.readInt();
+                            Set<String> refs = new HashSet<>(count);
+                            for (int i = 0; i < count; i++) {
+                                refs.add(in.readUTF());
+                            }
+                            index(id, position, refs);
+                            break;
+                        }
+                        case REMOVE: {
+                            unindex(id);
+                            break;
+                        }
+                        default: {
+                            throw new IOException("Unknown record type: " + type);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return the serialized tree or {@code null} if the process is not found.
+     */
+    private byte[] read(StateId rootId) throws IOException {
+        byte[] record;
+
+        segmentsLock.readLock().lock();
+        try {
+            Long pos = positions.get(rootId);
+            if (pos == null) {
+                return null;
+            }
+            record = journal.read(pos);
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            in.readByte();
+            in.readLong();
+
+            int refs = in.readInt();
+            for (int i = 0; i < refs; i++) {
+                in.readUTF();
+            }
+
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return data;
+        }
+    }
+
+    private void index(StateId id, long position, Set<String> refs) {
+        unindex(id);
+
+        positions.put(id, position);
+        eventRefs.put(id, refs);
+        for (String r : refs) {
+            eventIndex.put(r, id);
+        }
+    }
+
+    private void unindex(StateId id) {
+        positions.remove(id);
+
+        Set<String> refs = eventRefs.remove(id);
+        if (refs != null) {
+            for (String r : refs) {
+                eventIndex.remove(r, id);
+            }
+        }
+    }
+
+    private static void collectEventRefs(State state, Set<String> result) {
+        result.addAll(state.getEventRefs());
+        for (State c : state.getChildren()) {
+            collectEventRefs(c, result);
+        }
+    }
+
+    public static class Builder {
+
+        private final Journal.Builder journal;
+        private StateSerializer serializer = new BinaryStateSerializer();
+        private int cacheSize = 1000;
+
+        public Builder(Path dir) {
+            this.journal = new Journal.Builder(dir);
+        }
+
+        public Builder withSerializer(StateSerializer serializer) {
+            this.serializer = serializer;
+            return this;
+        }
+
+        /**
+         * Max number of trees kept in memory.
+         */
+        public Builder withCacheSize(int cacheSize) {
+            this.cacheSize = cacheSize;
+            return this;
+        }
+
+        /**
+         * @see Journal.Builder#withSegmentSize(int)
+         */
+        public Builder withSegmentSize(int segmentSize) {
+            journal.withSegmentSize(segmentSize);
+            return this;
+        }
+
+        /**
+         * @see Journal.Builder#withSyncMode(Journal.SyncMode)
+         */
+        public Builder withSyncMode(Journal.SyncMode syncMode) {
+            journal.withSyncMode(syncMode);
+            return this;
+        }
+
+        public FileStateStore build() throws IOException {
+            return new FileStateStore(journal.build(), serializer, cacheSize);
+        }
+    }
+}
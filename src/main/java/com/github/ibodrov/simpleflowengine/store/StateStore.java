@@ -0,0 +1,59 @@
+package com.github.ibodrov.simpleflowengine.store;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.StateId;
+
+import java.io.IOException;
+
+/**
+ * Storage of process {@link State states}. Used by the engine to save
+ * processes after each execution and to find and load them when resuming
+ * by an eventRef.
+ *
+ * @see com.github.ibodrov.simpleflowengine.Engine.Builder#withStateStore(StateStore)
+ */
+public interface StateStore {
+
+    /**
+     * Saves (or replaces) the process' state tree.
+     */
+    void save(State root) throws IOException;
+
+    /**
+     * Loads the process. Implementations can return the same (e.g. cached) object
+     * for consecutive loads, the engine loads, executes and saves a process
+     * while holding the process' lock.
+     *
+     * @return the process' state tree or {@code null} if the process is not found.
+     */
+    State load(StateId rootId) throws IOException;
+
+    /**
+     * @return ID of the process which waits for the specified event or {@code null}.
+     */
+    StateId findRoot(String eventRef) throws IOException;
+
+    /**
+     * Removes the process, e.g. after it completes.
+     */
+    void remove(StateId rootId) throws IOException;
+}
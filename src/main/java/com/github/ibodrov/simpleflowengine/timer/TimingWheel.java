@@ -0,0 +1,426 @@
+package com.github.ibodrov.simpleflowengine.timer;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hierarchical timing wheel. Holds large numbers of pending timeouts with
+ * O(1) {@link #schedule(long, Runnable) insertion} and {@link Timeout#cancel() cancellation}.
+ * <p>
+ * The time is divided into ticks. Each level of the wheel is a ring of
+ * {@value #WHEEL_SIZE} buckets, a bucket of level {@code N} covers
+ * {@code WHEEL_SIZE^N} ticks. A timeout goes into the lowest level which
+ * covers its deadline. When the lower level completes a revolution,
+ * the next bucket of the upper level is cascaded down. Timeouts beyond
+ * the range of the top level are parked in its farthest bucket and
+ * re-inserted when it's cascaded.
+ * <p>
+ * The wheel is advanced by a background thread. Expired tasks are executed
+ * by that thread and must be short, e.g. submit the actual work to an executor.
+ * The thread sleeps until the next tick which has any timeouts to expire or
+ * to cascade, an idle wheel doesn't wake up at all.
+ * Timeouts fire no earlier than their deadlines and at most one tick
+ * (plus the scheduling delay) later.
+ */
+public class TimingWheel implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(TimingWheel.class);
+
+    private static final int WHEEL_BITS = 8;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 5;
+    private static final long MAX_TICKS = 1L << (WHEEL_BITS * LEVELS);
+
+    private final long tickMillis;
+    private final long startTime;
+    private final Bucket[][] wheels;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition scheduled = lock.newCondition();
+    private final Thread worker;
+
+    /**
+     * The last processed tick. Guarded by {@link #lock}.
+     */
+    private long currentTick;
+
+    /**
+     * Number of pending timeouts. Guarded by {@link #lock}.
+     */
+    private int size;
+
+    /**
+     * The tick the wheel's thread sleeps until, {@link Long#MAX_VALUE} if
+     * there are no timeouts. Guarded by {@link #lock}.
+     */
+    private long wakeTick;
+
+    private volatile boolean closed;
+
+    /**
+     * @param tickMillis duration of a tick (resolution of the timer), in milliseconds.
+     */
+    public TimingWheel(long tickMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Invalid tick duration: " + tickMillis);
+        }
+
+        this.tickMillis = tickMillis;
+        this.startTime = System.currentTimeMillis();
+
+        this.wheels = new Bucket[LEVELS][WHEEL_SIZE];
+        for (Bucket[] w : wheels) {
+            for (int i = 0; i < w.length; i++) {
+                w[i] = new Bucket();
+            }
+        }
+
+        this.worker = new Thread(this::run, "timing-wheel");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Schedules a task. Deadlines in the past fire on the next tick.
+     *
+     * @param deadline the deadline, in milliseconds since the epoch.
+     * @param task the task, executed by the wheel's thread.
+     */
+    public Timeout schedule(long deadline, Runnable task) {
+        Timeout t = new Timeout(deadline, task);
+
+        // round up, so the timeout doesn't fire before the deadline
+        long ticks = deadline - startTime;
+        t.tick = ticks <= 0 ? 0 : (ticks + tickMillis - 1) / tickMillis;
+
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("The timing wheel is closed");
+            }
+
+            if (size == 0) {
+                // the idle wheel's thread doesn't advance the ticks
+                currentTick = Math.max(currentTick, (System.currentTimeMillis() - startTime) / tickMillis);
+            }
+
+            // the current tick's bucket is already processed
+            long tick = place(t, currentTick + 1);
+            size++;
+
+            if (tick < wakeTick) {
+                wakeTick = tick;
+                scheduled.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return t;
+    }
+
+    /**
+     * @return number of pending timeouts.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the wheel's thread. Pending timeouts are discarded.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+    }
+
+    private void run() {
+        List<Timeout> expired = new ArrayList<>();
+
+        while (!closed) {
+            long target = (System.currentTimeMillis() - startTime) / tickMillis;
+
+            lock.lock();
+            try {
+                if (size == 0) {
+                    // nothing to expire or cascade
+                    currentTick = Math.max(currentTick, target);
+                }
+
+                while (currentTick < target) {
+                    advance(expired);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            for (Timeout t : expired) {
+                try {
+                    t.task.run();
+                } catch (Throwable e) {
+                    log.warn("run -> timeout task error", e);
+                }
+            }
+            expired.clear();
+
+            lock.lock();
+            try {
+                wakeTick = nextWakeTick();
+
+                // new timeouts can move the wake up tick closer
+                while (!closed) {
+                    if (wakeTick == Long.MAX_VALUE) {
+                        scheduled.await();
+                        continue;
+                    }
+
+                    long delay = startTime + wakeTick * tickMillis - System.currentTimeMillis();
+                    if (delay <= 0) {
+                        break;
+                    }
+                    scheduled.await(delay, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the next tick which has any timeouts to expire or to cascade,
+     * {@link Long#MAX_VALUE} if there are no timeouts.
+     */
+    private long nextWakeTick() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        // the upper levels are cascaded at the end of the lowest level's revolution
+        long revolution = (currentTick | WHEEL_MASK) + 1;
+        for (long tick = currentTick + 1; tick < revolution; tick++) {
+            if (!wheels[0][index(tick, 0)].isEmpty()) {
+                return tick;
+            }
+        }
+        return revolution;
+    }
+
+    /**
+     * Moves to the next tick: cascades the upper levels' buckets
+     * if a revolution completes and collects the expired timeouts.
+     */
+    private void advance(List<Timeout> expired) {
+        long tick = ++currentTick;
+
+        int top = 0;
+        while (top < LEVELS - 1 && (tick & ((1L << (WHEEL_BITS * (top + 1))) - 1)) == 0) {
+            top++;
+        }
+
+        for (int level = top; level > 0; level--) {
+            Bucket b = wheels[level][index(tick, level)];
+            for (Timeout t = b.clear(); t != null; ) {
+                Timeout next = t.next;
+                t.next = null;
+                place(t, tick);
+                t = next;
+            }
+        }
+
+        Bucket b = wheels[0][index(tick, 0)];
+        for (Timeout t = b.clear(); t != null; ) {
+            Timeout next = t.next;
+            t.next = null;
+            t.expired = true;
+            expired.add(t);
+            size--;
+            t = next;
+        }
+    }
+
+    /**
+     * @return the tick the timeout is placed at.
+     */
+    private long place(Timeout t, long minTick) {
+        long ticks = Math.max(t.tick, minTick);
+        long delta = ticks - currentTick;
+
+        if (delta >= MAX_TICKS) {
+            // park in the farthest bucket, re-inserted once it's cascaded
+            ticks = currentTick + MAX_TICKS - 1;
+            delta = MAX_TICKS - 1;
+        }
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+
+        wheels[level][index(ticks, level)].add(t);
+        return ticks;
+    }
+
+    private static int index(long tick, int level) {
+        return (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+    }
+
+    /**
+     * A pending task.
+     */
+    public final class Timeout {
+
+        private final long deadline;
+        private final Runnable task;
+
+        /**
+         * The following fields are guarded by {@link TimingWheel#lock}.
+         */
+        private long tick;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+        private boolean expired;
+        private boolean cancelled;
+
+        private Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Cancels the timeout.
+         *
+         * @return {@code false} if the timeout already expired or was cancelled.
+         */
+        public boolean cancel() {
+            lock.lock();
+            try {
+                if (bucket == null) {
+                    return false;
+                }
+
+                bucket.remove(this);
+                cancelled = true;
+                size--;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean isCancelled() {
+            lock.lock();
+            try {
+                return cancelled;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean isExpired() {
+            lock.lock();
+            try {
+                return expired;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Doubly-linked list of timeouts.
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        boolean isEmpty() {
+            return head == null;
+        }
+
+        void add(Timeout t) {
+            t.bucket = this;
+            t.prev = tail;
+            t.next = null;
+            if (tail == null) {
+                head = t;
+            } else {
+                tail.next = t;
+            }
+            tail = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.prev == null) {
+                head = t.next;
+            } else {
+                t.prev.next = t.next;
+            }
+
+            if (t.next == null) {
+                tail = t.prev;
+            } else {
+                t.next.prev = t.prev;
+            }
+
+            t.bucket = null;
+            t.prev = null;
+            t.next = null;
+        }
+
+        /**
+         * Empties the bucket.
+         *
+         * @return the first timeout, the rest are linked using {@link Timeout#next}.
+         */
+        Timeout clear() {
+            Timeout t = head;
+            head = null;
+            tail = null;
+            for (Timeout i = t; i != null; i = i.next) {
+                i.bucket = null;
+                i.prev = null;
+            }
+            return t;
+        }
+    }
+}
@@ -22,21 +22,50 @@ package com.github.ibodrov.simpleflowengine;
 
 import com.github.ibodrov.simpleflowengine.commands.Block;
 import com.github.ibodrov.simpleflowengine.commands.Command;
+import com.github.ibodrov.simpleflowengine.commands.JoinPolicy;
+import com.github.ibodrov.simpleflowengine.commands.ParallelForEach;
 import com.github.ibodrov.simpleflowengine.commands.Suspend;
+import com.github.ibodrov.simpleflowengine.commands.SuspendUntil;
+import com.github.ibodrov.simpleflowengine.commands.Timer;
+import com.github.ibodrov.simpleflowengine.serialization.BinaryStateSerializer;
+import com.github.ibodrov.simpleflowengine.serialization.StateSerializer;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.github.ibodrov.simpleflowengine.commands.Block.Strategy.PARALLEL;
 import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeNoException;
 
 public class SimpleTest {
 
@@ -89,6 +118,708 @@ public class SimpleTest {
         state = serializationRoundtrip(state);
     }
 
+    @Test(timeout = 10000)
+    public void testNonBlockingJoin() throws Exception {
+        // nested parallel blocks on a single thread would deadlock with blocking joins
+        Command program = new Block(asList(
+                new Block(PARALLEL, asList(
+                        new Block(PARALLEL, asList(
+                                new Debug("a1"),
+                                new Block(PARALLEL, asList(
+                                        new Debug("a2"),
+                                        new TestSuspend("a")
+                                ))
+                        )),
+                        new Block(PARALLEL, asList(
+                                new Debug("b1"),
+                                new Debug("b2")
+                        ))
+                )),
+                tag("goodbye", new Debug("goodbye!"))
+        ));
+
+        RecordingListener listener = new RecordingListener();
+
+        State state = nonBlocking(listener).start(program);
+        assertEquals(State.Status.SUSPENDED, state.getStatus());
+        state = serializationRoundtrip(state);
+
+        state = nonBlocking(listener).resume(state, "a");
+        assertEquals(State.Status.DONE, state.getStatus());
+        assertTags(listener, "goodbye");
+    }
+
+    @Test(timeout = 10000)
+    public void testSharedEngine() throws Exception {
+        Command program = new Block(PARALLEL, asList(
+                new Debug("a"),
+                new Block(asList(
+                        new TestSuspend("b"),
+                        new Debug("after b")
+                ))
+        ));
+
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        try (Engine engine = new Engine.Builder()
+                .withExecutor(Executors.newFixedThreadPool(2))
+                .withNonBlockingJoin(true)
+                .build()) {
+
+            List<Future<State>> started = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                started.add(callers.submit(() -> engine.start(program)));
+            }
+
+            List<Future<State>> resumed = new ArrayList<>();
+            for (Future<State> f : started) {
+                State state = f.get();
+                assertEquals(State.Status.SUSPENDED, state.getStatus());
+                resumed.add(callers.submit(() -> engine.resume(state, "b")));
+            }
+
+            for (Future<State> f : resumed) {
+                assertEquals(State.Status.DONE, f.get().getStatus());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testExecutorPools() throws Exception {
+        for (boolean nonBlockingJoin : asList(false, true)) {
+            Probe probe = new Probe();
+
+            List<Command> branches = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                branches.add(probe);
+            }
+            branches.add(new Block(asList(
+                    new TestSuspend("a"),
+                    probe
+            )));
+
+            Command program = new Block(PARALLEL, branches, "io", 2);
+
+            State state = pools(nonBlockingJoin).start(program);
+            assertEquals(State.Status.SUSPENDED, state.getStatus());
+            assertEquals(6, probe.threads.size());
+
+            state = pools(nonBlockingJoin).resume(state, "a");
+            assertEquals(State.Status.DONE, state.getStatus());
+            assertEquals(7, probe.threads.size());
+
+            assertTrue(probe.maxRunning.get() <= 2);
+            for (String t : probe.threads) {
+                assertTrue(t, t.startsWith("io-"));
+            }
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testVirtualThreads() throws Exception {
+        Runtime runtime;
+        try {
+            runtime = new Runtime.Builder()
+                    .withVirtualThreads(true)
+                    .build();
+        } catch (IllegalStateException e) {
+            // requires Java 21+
+            assumeNoException(e);
+            return;
+        }
+
+        Probe probe = new Probe();
+
+        List<Command> branches = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            branches.add(probe);
+        }
+
+        State state = runtime.start(new Block(PARALLEL, branches));
+        assertEquals(State.Status.DONE, state.getStatus());
+        assertEquals(10_000, probe.threads.size());
+    }
+
+    @Test(timeout = 10000)
+    public void testResumeAll() throws Exception {
+        Command program = new Block(asList(
+                new Block(PARALLEL, asList(
+                        new Block(asList(
+                                new TestSuspend("a"),
+                                tag("afterA", new Debug("after a"))
+                        )),
+                        new Block(PARALLEL, asList(
+                                new TestSuspend("b"),
+                                new TestSuspend("c")
+                        ))
+                )),
+                tag("goodbye", new Debug("goodbye!"))
+        ));
+
+        RecordingListener listener = new RecordingListener();
+
+        try (Engine engine = new Engine.Builder().withListener(listener).build()) {
+            Map<State, List<String>> events = new LinkedHashMap<>();
+            for (int i = 0; i < 10; i++) {
+                State state = engine.start(program);
+                assertEquals(State.Status.SUSPENDED, state.getStatus());
+                events.put(state, asList("a", "b", "c"));
+            }
+            listener.purge();
+
+            List<State> result = engine.resumeAll(events);
+            assertEquals(10, result.size());
+            for (State s : result) {
+                assertEquals(State.Status.DONE, s.getStatus());
+                assertTrue(s.getChildren().isEmpty());
+            }
+
+            long goodbyes = listener.purge().stream()
+                    .filter(c -> c instanceof Tagged && ((Tagged) c).getTag().equals("goodbye"))
+                    .count();
+            assertEquals(10, goodbyes);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testTimers() throws Exception {
+        Command program = new Block(asList(
+                new Block(PARALLEL, asList(
+                        new Block(asList(
+                                new Timer("t1", 50, TimeUnit.MILLISECONDS),
+                                new Debug("after t1")
+                        )),
+                        new Block(asList(
+                                new SuspendUntil("t2", System.currentTimeMillis() + 100),
+                                new Debug("after t2")
+                        ))
+                )),
+                tag("goodbye", new Debug("goodbye!"))
+        ));
+
+        State state;
+        try (Engine engine = new Engine.Builder().build()) {
+            state = engine.start(program);
+            assertEquals(State.Status.SUSPENDED, state.getStatus());
+        }
+
+        // pending timers are discarded by the closed engine, the restored state has them
+        state = serializationRoundtrip(state);
+
+        CountDownLatch done = new CountDownLatch(1);
+        RecordingListener listener = new RecordingListener() {
+            @Override
+            public void onDone(State s) {
+                if (s.getParent() == null) {
+                    done.countDown();
+                }
+            }
+        };
+
+        try (Engine engine = new Engine.Builder().withListener(listener).withTimerTick(5).build()) {
+            engine.scheduleTimers(state);
+            done.await();
+        }
+
+        assertEquals(State.Status.DONE, state.getStatus());
+        assertTags(listener, "goodbye");
+    }
+
+    @Test(timeout = 10000)
+    public void testTimersWithExecutionLock() throws Exception {
+        Command program = new Block(PARALLEL, asList(
+                new Block(asList(new Timer("t1", 20, TimeUnit.MILLISECONDS), new Debug("after t1"))),
+                new Block(asList(new Timer("t2", 40, TimeUnit.MILLISECONDS), new Debug("after t2")))
+        ));
+
+        try (Engine engine = new Engine.Builder().withTimerTick(1).build()) {
+            State state = engine.start(program);
+
+            // the timers resume the same state object on the engine's threads,
+            // the caller sees only the states between the executions
+            Set<State.Status> seen = new HashSet<>();
+            while (true) {
+                State.Status status = engine.withExecutionLock(state, s -> {
+                    serializationRoundtripUnchecked(s);
+                    return s.getStatus();
+                });
+
+                seen.add(status);
+                if (status == State.Status.DONE) {
+                    break;
+                }
+            }
+
+            assertTrue(seen.toString(), EnumSet.of(State.Status.SUSPENDED, State.Status.DONE).containsAll(seen));
+            assertNull(state.getLastError());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCancel() throws Exception {
+        Command program = new Block(PARALLEL, asList(
+                new TestSuspend("a"),
+                new Block(asList(
+                        new Sleep(60000),
+                        tag("unreachable", new Debug("unreachable"))
+                ))
+        ));
+
+        CountDownLatch started = new CountDownLatch(1);
+        State[] root = new State[1];
+        RecordingListener listener = new RecordingListener() {
+            @Override
+            public void onStart(State s) {
+                root[0] = s;
+                started.countDown();
+            }
+        };
+
+        try (Engine engine = new Engine.Builder().withListener(listener).build()) {
+            // cancel the process while the sleep is running
+            Future<State> f = Executors.newSingleThreadExecutor().submit(() -> engine.start(program));
+            started.await();
+            Thread.sleep(100);
+
+            State state = engine.cancel(root[0], root[0].getId());
+            assertEquals(State.Status.DONE, state.getStatus());
+            assertTrue(state.getLastError() instanceof CancellationException);
+            assertNull(state.findEventOwner("a"));
+
+            try {
+                f.get();
+                fail("exception expected");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof CancellationException);
+            }
+
+            assertTrue(listener.purge().stream().noneMatch(c -> c instanceof Tagged));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCancelSuspended() throws Exception {
+        Command program = new Block(asList(
+                new Block(PARALLEL, asList(
+                        new TestSuspend("a"),
+                        new Block(PARALLEL, asList(new TestSuspend("b"), new TestSuspend("c")))
+                )),
+                new Debug("unreachable")
+        ));
+
+        try (Engine engine = new Engine.Builder().build()) {
+            State state = engine.start(program);
+            assertEquals(State.Status.SUSPENDED, state.getStatus());
+
+            // cancel the branch waiting for "b" and "c"
+            State branch = state.getChildren().stream()
+                    .filter(c -> c.findEventOwner("b") != null && !c.getChildren().isEmpty())
+                    .findFirst()
+                    .orElseThrow(IllegalStateException::new);
+
+            state = engine.cancel(state, branch.getId());
+            assertEquals(State.Status.DONE, state.getStatus());
+            assertTrue(state.getLastError() instanceof MultipleExceptions);
+            assertTrue(((MultipleExceptions) state.getLastError()).getCauses().get(0) instanceof CancellationException);
+            assertNull(state.findEventOwner("b"));
+            assertNull(state.findEventOwner("c"));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testDeadlines() throws Exception {
+        Command program = new Block(asList(
+                new Block(PARALLEL, asList(
+                        new Sleep(60000),
+                        new Debug("quick")
+                ), null, 0, 100),
+                tag("unreachable", new Debug("unreachable"))
+        ));
+
+        RecordingListener listener = new RecordingListener();
+        try (Engine engine = new Engine.Builder().withListener(listener).withTimerTick(5).build()) {
+            try {
+                engine.start(program);
+                fail("exception expected");
+            } catch (MultipleExceptions e) {
+                assertTrue(e.getCauses().get(0) instanceof CancellationException);
+            }
+
+            assertTrue(listener.purge().stream().noneMatch(c -> c instanceof Tagged));
+
+            // the whole process
+            State state = engine.start(new TestSuspend("a"), 50, TimeUnit.MILLISECONDS);
+            assertEquals(State.Status.SUSPENDED, state.getStatus());
+
+            long t = System.currentTimeMillis();
+            while (state.getStatus() != State.Status.DONE) {
+                assertTrue(System.currentTimeMillis() - t < 5000);
+                Thread.sleep(10);
+            }
+            assertTrue(state.getLastError() instanceof CancellationException);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testJoinPolicies() throws Exception {
+        try (Engine engine = new Engine.Builder().build()) {
+            // the failure cancels the sleeping sibling
+            try {
+                engine.start(parallel(JoinPolicy.FAIL_FAST, new TestException(), new Sleep(60000)));
+                fail("exception expected");
+            } catch (MultipleExceptions e) {
+                assertEquals(1, e.getCauses().size());
+                assertEquals("Whoops!", e.getCauses().get(0).getMessage());
+            }
+
+            State state = engine.start(parallel(JoinPolicy.FIRST, new Sleep(60000), new Debug("fast")));
+            assertEquals(State.Status.DONE, state.getStatus());
+            assertNull(state.getLastError());
+
+            // suspended siblings are cancelled too
+            state = engine.start(parallel(JoinPolicy.quorum(2), new TestSuspend("a"), new Debug("b"), new Debug("c")));
+            assertEquals(State.Status.DONE, state.getStatus());
+            assertNull(state.findEventOwner("a"));
+
+            // the outcome depends on the suspended branches
+            state = engine.start(parallel(JoinPolicy.FIRST, new TestSuspend("a"), new TestSuspend("b")));
+            assertEquals(State.Status.SUSPENDED, state.getStatus());
+            state = engine.resume(serializationRoundtrip(state), "b");
+            assertEquals(State.Status.DONE, state.getStatus());
+            assertNull(state.findEventOwner("a"));
+
+            try {
+                engine.start(parallel(JoinPolicy.quorum(2), new TestException(), new TestException(), new Sleep(60000)));
+                fail("exception expected");
+            } catch (MultipleExceptions e) {
+                assertEquals(2, e.getCauses().size());
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testParallelForEach() throws Exception {
+        Probe probe = new Probe();
+        List<Command> commands = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            commands.add(probe);
+        }
+
+        AtomicInteger forks = new AtomicInteger();
+        RuntimeListener listener = new RuntimeListener() {
+            @Override
+            public void onFork(State parent, State child) {
+                forks.incrementAndGet();
+            }
+        };
+
+        State state = start(listener, new ParallelForEach(commands, 3, 4));
+        assertEquals(State.Status.DONE, state.getStatus());
+        assertEquals(40, probe.threads.size());
+        assertTrue(probe.maxRunning.get() <= 4);
+        // one child per worker, not per command
+        assertEquals(4, forks.get());
+
+        // suspended workers continue their chunks after resuming
+        StateSerializer serializer = new BinaryStateSerializer();
+        try (Engine engine = new Engine.Builder().build()) {
+            state = engine.start(new ParallelForEach(asList(
+                    new Debug("a"), new TestSuspend("ev1"),
+                    new Debug("b"), new Debug("c"),
+                    new TestSuspend("ev2"), new Debug("d")), 2, 2));
+            assertEquals(State.Status.SUSPENDED, state.getStatus());
+
+            state = engine.resume(serializer.deserialize(serializer.serialize(state)), "ev1");
+            assertEquals(State.Status.SUSPENDED, state.getStatus());
+
+            state = engine.resume(serializer.deserialize(serializer.serialize(state)), "ev2");
+            assertEquals(State.Status.DONE, state.getStatus());
+            assertNull(state.getLastError());
+
+            try {
+                engine.start(new ParallelForEach(asList(new Debug("a"), new TestException(), new Sleep(60000)), 1, 3));
+                fail("exception expected");
+            } catch (MultipleExceptions e) {
+                assertEquals("Whoops!", e.getCauses().get(0).getMessage());
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testResumeCompleted() throws Exception {
+        try (Engine engine = new Engine.Builder().build()) {
+            State state = engine.start(new Block(asList(new TestSuspend("ev1"), new Debug("a"))));
+            assertEquals(State.Status.SUSPENDED, state.getStatus());
+
+            state = engine.resume(state, "ev1");
+            assertEquals(State.Status.DONE, state.getStatus());
+
+            // a completed process stays completed
+            try {
+                engine.resume(state, "ev1");
+                fail("exception expected");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            assertEquals(State.Status.DONE, state.getStatus());
+            assertNull(state.getLastError());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testParallelForEachReuse() throws Exception {
+        Probe probe = new Probe();
+        List<Command> commands = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            commands.add(probe);
+        }
+
+        // the same instance is executed twice by one process and then by another one
+        ParallelForEach forEach = new ParallelForEach(commands, 2, 3);
+        try (Engine engine = new Engine.Builder().build()) {
+            State state = engine.start(new Block(asList(forEach, forEach)));
+            assertEquals(State.Status.DONE, state.getStatus());
+            assertEquals(20, probe.threads.size());
+
+            state = engine.start(forEach);
+            assertEquals(State.Status.DONE, state.getStatus());
+            assertEquals(30, probe.threads.size());
+        }
+
+        // the progress survives suspend/resume with both serializers
+        StateSerializer serializer = new BinaryStateSerializer();
+        List<Function<State, State>> roundtrips = asList(
+                s -> {
+                    try {
+                        return serializer.deserialize(serializer.serialize(s));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                },
+                SimpleTest::serializationRoundtripUnchecked);
+
+        forEach = new ParallelForEach(asList(
+                new Debug("a"), new TestSuspend("ev1"),
+                new Debug("b"), new Debug("c"),
+                new Debug("d"), new TestSuspend("ev2")), 2, 2);
+
+        for (Function<State, State> roundtrip : roundtrips) {
+            try (Engine engine = new Engine.Builder().build()) {
+                State state = engine.start(forEach);
+                assertEquals(State.Status.SUSPENDED, state.getStatus());
+
+                // the first worker is suspended in the first chunk,
+                // the second one took the other two chunks
+                state = roundtrip.apply(state);
+                ParallelForEach.Progress progress = (ParallelForEach.Progress) state.getStack().peek();
+                assertEquals(3, progress.getClaimed());
+                assertEquals(2, progress.getWorkers().length);
+                assertEquals(forEach.getCommands().size(), progress.getCommand().getCommands().size());
+
+                state = engine.resume(state, "ev1");
+                assertEquals(State.Status.SUSPENDED, state.getStatus());
+
+                state = engine.resume(roundtrip.apply(state), "ev2");
+                assertEquals(State.Status.DONE, state.getStatus());
+                assertNull(state.getLastError());
+                assertTrue(state.getStack().isEmpty());
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testSupervision() throws Exception {
+        try (Engine engine = new Engine.Builder().build()) {
+            // the orphan is cancelled once the process completes
+            State state = engine.start(new Block(asList(new SpawnDetached(new Sleep(60000)), new Debug("done"))));
+            assertEquals(State.Status.DONE, state.getStatus());
+            assertEquals(0, engine.getInFlightTaskCount(state));
+            assertEquals(0, engine.getInFlightTaskCount());
+
+            // the suspended process waits for the orphan
+            long t = System.currentTimeMillis();
+            state = engine.start(new Block(asList(new SpawnDetached(new Sleep(200)), new TestSuspend("a"))));
+            assertEquals(State.Status.SUSPENDED, state.getStatus());
+            assertTrue(System.currentTimeMillis() - t >= 200);
+            assertEquals(0, engine.getInFlightTaskCount(state));
+        }
+
+        // errors outside of the commands cancel the process instead of getting lost
+        RuntimeListener listener = new RuntimeListener() {
+            @Override
+            public void onDequeued(State state, long queuedTime) {
+                throw new IllegalStateException("listener error");
+            }
+        };
+
+        try (Engine engine = new Engine.Builder().withListener(listener).withNonBlockingJoin(true).build()) {
+            try {
+                engine.start(new Block(PARALLEL, asList(new Debug("a"), new Debug("b"))));
+                fail("exception expected");
+            } catch (CancellationException e) {
+                assertEquals("listener error", e.getCause().getMessage());
+            }
+            assertEquals(0, engine.getInFlightTaskCount());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testWorkStealing() throws Exception {
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        AtomicInteger leaves = new AtomicInteger();
+
+        // 3 levels of 4-way parallel blocks
+        Command program = nested(3, 4, () -> (ctx, state) -> {
+            state.getStack().pop();
+            threads.add(Thread.currentThread().getName());
+            leaves.incrementAndGet();
+        });
+
+        // a single worker runs the whole tree by executing the children it forks
+        try (Engine engine = new Engine.Builder().withWorkStealing(1).build()) {
+            State state = engine.start(program);
+            assertEquals(State.Status.DONE, state.getStatus());
+            assertEquals(64, leaves.get());
+            assertEquals(1, threads.size());
+            assertEquals(0, engine.getInFlightTaskCount());
+        }
+
+        try (Engine engine = new Engine.Builder().withWorkStealing(4).build()) {
+            for (int i = 0; i < 20; i++) {
+                State state = engine.start(program);
+                assertEquals(State.Status.DONE, state.getStatus());
+            }
+            assertEquals(64 * 21, leaves.get());
+
+            // suspended branches still work
+            State state = engine.start(new Block(PARALLEL, asList(new TestSuspend("a"), new Debug("b"))));
+            assertEquals(State.Status.SUSPENDED, state.getStatus());
+            state = engine.resume(state, "a");
+            assertEquals(State.Status.DONE, state.getStatus());
+        }
+    }
+
+    @Test
+    public void testListenerSampling() throws Exception {
+        List<Command> commands = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            commands.add(new Debug("#" + i));
+        }
+
+        AtomicInteger before = new AtomicInteger();
+        AtomicInteger after = new AtomicInteger();
+
+        RuntimeListener sampled = new RuntimeListener() {
+
+            @Override
+            public int getCommandSampleRate() {
+                return 3;
+            }
+
+            @Override
+            public void beforeCommand(Command cmd) {
+                before.incrementAndGet();
+            }
+
+            @Override
+            public void afterCommand(Command cmd) {
+                after.incrementAndGet();
+            }
+        };
+
+        RecordingListener all = new RecordingListener();
+
+        new Runtime.Builder()
+                .withListener(sampled)
+                .withListener(all)
+                .build()
+                .start(new Block(commands));
+
+        // the block itself and 9 commands
+        assertEquals(10, all.purge().size());
+        // commands #0, #3, #6, #9
+        assertEquals(4, before.get());
+        assertEquals(4, after.get());
+    }
+
+    @Test
+    public void testListenerErrors() throws Exception {
+        AtomicInteger legacy = new AtomicInteger();
+        List<Throwable> errors = new ArrayList<>();
+
+        RuntimeListener listener = new RuntimeListener() {
+
+            @Override
+            public void afterCommand(Command cmd) {
+                legacy.incrementAndGet();
+            }
+
+            @Override
+            public void afterCommand(Command cmd, State state, long startTime, long endTime, Throwable error) {
+                RuntimeListener.super.afterCommand(cmd, state, startTime, endTime, error);
+                if (error != null) {
+                    errors.add(error);
+                }
+            }
+        };
+
+        try {
+            new Runtime.Builder()
+                    .withListener(listener)
+                    .build()
+                    .start(new Block(asList(new Debug("a"), new TestException())));
+            fail("exception expected");
+        } catch (RuntimeException e) {
+            assertEquals("Whoops!", e.getMessage());
+        }
+
+        // the block and "a", the failed command only with its error
+        assertEquals(2, legacy.get());
+        assertEquals(1, errors.size());
+    }
+
+    @Test
+    public void testDoneListenerErrors() throws Exception {
+        RuntimeListener listener = new RuntimeListener() {
+
+            @Override
+            public void onDone(State state) {
+                if (state.getParent() != null) {
+                    throw new IllegalStateException("Can't record " + state.getId());
+                }
+            }
+        };
+
+        // the children's errors fail the join
+        try {
+            new Runtime.Builder()
+                    .withListener(listener)
+                    .build()
+                    .start(new Block(PARALLEL, asList(new Debug("a"), new Debug("b"))));
+            fail("exception expected");
+        } catch (MultipleExceptions e) {
+            assertEquals(2, e.getCauses().size());
+            assertTrue(e.getCauses().get(0) instanceof IllegalStateException);
+        }
+    }
+
+    private static Runtime pools(boolean nonBlockingJoin) {
+        AtomicInteger seq = new AtomicInteger();
+        return new Runtime.Builder()
+                .withExecutor("io", Executors.newCachedThreadPool(r -> new Thread(r, "io-" + seq.incrementAndGet())))
+                .withNonBlockingJoin(nonBlockingJoin)
+                .build();
+    }
+
+    private static Runtime nonBlocking(RuntimeListener listener) {
+        return new Runtime.Builder()
+                .withExecutor(Executors.newSingleThreadExecutor())
+                .withNonBlockingJoin(true)
+                .withListener(listener)
+                .build();
+    }
+
     private static State start(RuntimeListener listener, Command program) throws Exception {
         return new Runtime.Builder()
                 .withListener(listener)
@@ -115,6 +846,26 @@ public class SimpleTest {
         }
     }
 
+    private static State serializationRoundtripUnchecked(State state) {
+        try {
+            return serializationRoundtrip(state);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Command parallel(JoinPolicy policy, Command... commands) {
+        return new Block(PARALLEL, asList(commands), null, 0, 0, policy);
+    }
+
+    private static Command nested(int depth, int width, Supplier<Command> leaf) {
+        List<Command> l = new ArrayList<>(width);
+        for (int i = 0; i < width; i++) {
+            l.add(depth == 1 ? leaf.get() : nested(depth - 1, width, leaf));
+        }
+        return new Block(PARALLEL, l);
+    }
+
     private static Command tag(String tag, Command cmd) {
         return new Tagged(tag, cmd);
     }
@@ -159,6 +910,10 @@ public class SimpleTest {
             this.eventRef = eventRef;
         }
 
+        public String getEventRef() {
+            return eventRef;
+        }
+
         @Override
         public void eval(RuntimeContext ctx, State state) {
             Stack<Command> stack = state.getStack();
@@ -179,6 +934,10 @@ public class SimpleTest {
             this.message = message;
         }
 
+        public String getMessage() {
+            return message;
+        }
+
         @Override
         public void eval(RuntimeContext ctx, State state) {
             Stack<Command> stack = state.getStack();
@@ -213,6 +972,52 @@ public class SimpleTest {
         }
     }
 
+    public static class Probe implements Command {
+
+        private static final long serialVersionUID = 1L;
+
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxRunning = new AtomicInteger();
+        private final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void eval(RuntimeContext ctx, State state) {
+            Stack<Command> stack = state.getStack();
+            stack.pop();
+
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            threads.add(Thread.currentThread().getName());
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    public static class SpawnDetached implements Command {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Command command;
+
+        public SpawnDetached(Command command) {
+            this.command = command;
+        }
+
+        @Override
+        public void eval(RuntimeContext ctx, State state) {
+            state.getStack().pop();
+
+            State child = new State(ctx.nextStateId());
+            child.getStack().push(command);
+            state.addChild(child);
+            ctx.spawn(child);
+        }
+    }
+
     public static class Tagged implements Command {
 
         private final String tag;
@@ -0,0 +1,94 @@
+package com.github.ibodrov.simpleflowengine;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SnowflakeIdGeneratorTest {
+
+    @Test(timeout = 30000)
+    public void testUniqueness() throws Exception {
+        int threads = 8;
+        int perThread = 100_000;
+
+        // two nodes in the same JVM, at the same time
+        SnowflakeIdGenerator a = new SnowflakeIdGenerator(1);
+        SnowflakeIdGenerator b = new SnowflakeIdGenerator(2);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                SnowflakeIdGenerator g = i % 2 == 0 ? a : b;
+                futures.add(executor.submit(() -> {
+                    long[] ids = new long[perThread];
+                    for (int j = 0; j < perThread; j++) {
+                        ids[j] = g.nextId();
+                    }
+                    return ids;
+                }));
+            }
+
+            Set<Long> all = new HashSet<>(threads * perThread * 2);
+            for (Future<long[]> f : futures) {
+                long prev = -1;
+                for (long id : f.get()) {
+                    assertTrue(id > 0);
+                    // monotonic within a thread
+                    assertTrue(id > prev);
+                    prev = id;
+
+                    assertTrue("Duplicate ID: " + id, all.add(id));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLayout() {
+        long t = System.currentTimeMillis();
+        long id = new SnowflakeIdGenerator(42).nextId();
+
+        assertEquals(42, SnowflakeIdGenerator.nodeIdOf(id));
+        assertTrue(SnowflakeIdGenerator.timestampOf(id) >= t);
+
+        try {
+            new SnowflakeIdGenerator(SnowflakeIdGenerator.MAX_NODE_ID + 1);
+            fail("exception expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
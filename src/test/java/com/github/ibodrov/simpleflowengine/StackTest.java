@@ -0,0 +1,78 @@
+package com.github.ibodrov.simpleflowengine;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StackTest {
+
+    @Test
+    public void testPushAll() {
+        Stack<String> stack = new Stack<>(1);
+        stack.push("x");
+        stack.pushAll(asList("a", "b", "c"));
+
+        // the first item of the list is on top
+        assertEquals(asList("x", "c", "b", "a"), stack.toList());
+        assertEquals("a", stack.pop());
+        assertEquals("b", stack.pop());
+        assertEquals("c", stack.pop());
+        assertEquals("x", stack.pop());
+        assertTrue(stack.isEmpty());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSerialization() throws Exception {
+        Stack<String> stack = new Stack<>();
+        for (int i = 0; i < 20; i++) {
+            stack.push("#" + i);
+        }
+        stack.pop();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(baos)) {
+            out.writeObject(stack);
+        }
+
+        Stack<String> restored;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            restored = (Stack<String>) in.readObject();
+        }
+
+        assertEquals(stack.toList(), restored.toList());
+        assertEquals("#18", restored.peek());
+
+        // the restored stack can grow
+        restored.push("#19");
+        assertEquals(20, restored.size());
+        assertEquals("#19", restored.pop());
+    }
+}
@@ -0,0 +1,108 @@
+package com.github.ibodrov.simpleflowengine;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.SimpleTest.Debug;
+import com.github.ibodrov.simpleflowengine.SimpleTest.TestSuspend;
+import com.github.ibodrov.simpleflowengine.commands.Block;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+import com.github.ibodrov.simpleflowengine.serialization.BinaryStateSerializer;
+import com.github.ibodrov.simpleflowengine.serialization.StateSerializer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.ibodrov.simpleflowengine.commands.Block.Strategy.PARALLEL;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StateDeltaTest {
+
+    @Test(timeout = 10000)
+    public void testIncrementalPersistence() throws Exception {
+        int width = 50;
+
+        StateSerializer serializer = new BinaryStateSerializer();
+        List<byte[]> log = new ArrayList<>();
+
+        try (Engine engine = new Engine.Builder().build()) {
+            State state = engine.start(program(width));
+
+            // the first delta contains the whole tree
+            StateDelta initial = state.takeDelta();
+            assertEquals(width + 1, initial.getChanged().size());
+            log.add(serializer.serializeDelta(initial));
+
+            for (int i = 0; i < width; i++) {
+                if (i == width / 2) {
+                    // continue using the state restored from the log
+                    state = replay(serializer, log);
+                    log.clear();
+                    log.add(serializer.serializeDelta(StateDelta.snapshot(state)));
+                }
+
+                state = engine.resume(state, "ev" + i);
+
+                StateDelta delta = state.takeDelta();
+                log.add(serializer.serializeDelta(delta));
+
+                if (i < width - 1) {
+                    // only the resumed child and the root were changed
+                    assertEquals(2, delta.getChanged().size());
+                    assertTrue(delta.getRemoved().isEmpty());
+                } else {
+                    // completed process, all children are removed
+                    assertEquals(width, delta.getRemoved().size());
+                }
+            }
+
+            assertEquals(State.Status.DONE, state.getStatus());
+
+            State restored = replay(serializer, log);
+            assertEquals(state.getId(), restored.getId());
+            assertEquals(State.Status.DONE, restored.getStatus());
+            assertTrue(restored.getChildren().isEmpty());
+        }
+    }
+
+    private static State replay(StateSerializer serializer, List<byte[]> log) throws Exception {
+        StateDelta result = null;
+        for (byte[] ab : log) {
+            StateDelta d = serializer.deserializeDelta(ab);
+            result = result == null ? d : result.merge(d);
+        }
+        return result.toState();
+    }
+
+    private static Command program(int width) {
+        List<Command> branches = new ArrayList<>();
+        for (int i = 0; i < width; i++) {
+            branches.add(new Block(asList(
+                    new TestSuspend("ev" + i),
+                    new Debug("after " + i)
+            )));
+        }
+
+        return new Block(PARALLEL, branches);
+    }
+}
@@ -0,0 +1,265 @@
+package com.github.ibodrov.simpleflowengine;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.SimpleTest.Debug;
+import com.github.ibodrov.simpleflowengine.State.Status;
+import com.github.ibodrov.simpleflowengine.commands.Block;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+import com.github.ibodrov.simpleflowengine.commands.JoinPolicy;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.ibodrov.simpleflowengine.commands.Block.Strategy.PARALLEL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exercises the parts of {@link State} which are accessed concurrently.
+ */
+public class StateStressTest {
+
+    private static final int THREADS = 8;
+
+    @Test(timeout = 30000)
+    public void testConcurrentChildren() throws Exception {
+        int perThread = 2000;
+
+        State parent = new State(new StateId(0));
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicInteger seq = new AtomicInteger(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        try {
+            // iterates and looks up the children while they are being added
+            Future<?> reader = executor.submit(() -> {
+                while (!stop.get()) {
+                    for (State c : parent.getChildren()) {
+                        assertSame(c, parent.getChild(c.getId()));
+                        assertSame(parent, c.getParent());
+                    }
+                    parent.snapshotChildren();
+                }
+            });
+
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> writers = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                writers.add(executor.submit(() -> {
+                    start.await();
+                    for (int j = 0; j < perThread; j++) {
+                        parent.addChild(new State(new StateId(seq.getAndIncrement())));
+                    }
+                    return null;
+                }));
+            }
+
+            start.countDown();
+            for (Future<?> f : writers) {
+                f.get();
+            }
+
+            stop.set(true);
+            reader.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(THREADS * perThread, parent.getChildren().size());
+        for (int i = 1; i <= THREADS * perThread; i++) {
+            assertNotNull(parent.getChild(new StateId(i)));
+        }
+
+        // removed children are no longer indexed
+        State c = parent.getChild(new StateId(1));
+        parent.removeChild(c);
+        assertNull(parent.getChild(new StateId(1)));
+        assertNull(c.getParent());
+    }
+
+    @Test(timeout = 30000)
+    public void testStatusTransitions() throws Exception {
+        int rounds = 10_000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int i = 0; i < rounds; i++) {
+                State state = new State(new StateId(i));
+                state.setStatus(Status.SUSPENDED);
+
+                AtomicInteger winners = new AtomicInteger();
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> futures = new ArrayList<>();
+                for (int j = 0; j < THREADS; j++) {
+                    futures.add(executor.submit(() -> {
+                        start.await();
+                        if (state.compareAndSetStatus(Status.SUSPENDED, Status.DONE)) {
+                            winners.incrementAndGet();
+                        }
+                        return null;
+                    }));
+                }
+
+                start.countDown();
+                for (Future<?> f : futures) {
+                    f.get();
+                }
+
+                assertEquals(1, winners.get());
+                assertEquals(Status.DONE, state.getStatus());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testConcurrentCompletion() throws Exception {
+        int rounds = 10_000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int i = 0; i < rounds; i++) {
+                State state = new State(new StateId(i));
+                state.setStatus(Status.SUSPENDED);
+
+                // the same order the engine uses to finish cancelled states:
+                // the error first, then the status. The losers don't touch the error
+                List<Throwable> winners = Collections.synchronizedList(new ArrayList<>());
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> futures = new ArrayList<>();
+                for (int j = 0; j < THREADS; j++) {
+                    RuntimeException error = new RuntimeException("#" + j);
+                    futures.add(executor.submit(() -> {
+                        start.await();
+                        if (state.compareAndSetLastError(null, error)
+                                && state.compareAndSetStatus(Status.SUSPENDED, Status.DONE)) {
+                            winners.add(error);
+                        }
+                        return null;
+                    }));
+                }
+
+                start.countDown();
+                for (Future<?> f : futures) {
+                    f.get();
+                }
+
+                assertEquals(1, winners.size());
+                assertEquals(Status.DONE, state.getStatus());
+                assertSame(winners.get(0), state.getLastError());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testErrorVisibility() throws Exception {
+        int rounds = 10_000;
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < rounds; i++) {
+                State state = new State(new StateId(i));
+                RuntimeException error = new RuntimeException("#" + i);
+
+                // the same order the engine uses: the error, then the status
+                executor.execute(() -> {
+                    state.setLastError(error);
+                    state.setStatus(Status.DONE);
+                });
+
+                while (state.getStatus() != Status.DONE) {
+                    Thread.yield();
+                }
+                assertSame(error, state.getLastError());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testWideJoins() throws Exception {
+        int width = 200;
+
+        List<Command> branches = new ArrayList<>(width);
+        for (int i = 0; i < width; i++) {
+            branches.add(new Debug("#" + i));
+        }
+
+        for (boolean nonBlockingJoin : new boolean[]{false, true}) {
+            try (Engine engine = new Engine.Builder()
+                    .withExecutor(Executors.newFixedThreadPool(THREADS))
+                    .withNonBlockingJoin(nonBlockingJoin)
+                    .build()) {
+
+                for (int i = 0; i < 50; i++) {
+                    JoinPolicy policy = i % 2 == 0 ? JoinPolicy.ALL : JoinPolicy.quorum(width / 2);
+                    State state = engine.start(new Block(PARALLEL, branches, null, 0, 0, policy));
+                    assertEquals(Status.DONE, state.getStatus());
+                    assertNull(state.getLastError());
+                }
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentProcesses() throws Exception {
+        int processes = 200;
+
+        List<Command> branches = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            branches.add(new Debug("#" + i));
+        }
+        Command program = new Block(PARALLEL, branches);
+
+        ExecutorService callers = Executors.newFixedThreadPool(THREADS);
+        try (Engine engine = new Engine.Builder().withNonBlockingJoin(true).build()) {
+            List<Future<State>> futures = new ArrayList<>(processes);
+            for (int i = 0; i < processes; i++) {
+                futures.add(callers.submit(() -> engine.start(program)));
+            }
+
+            for (Future<State> f : futures) {
+                State state = f.get(30, TimeUnit.SECONDS);
+                assertEquals(Status.DONE, state.getStatus());
+                assertTrue(state.getChildren().isEmpty());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+}
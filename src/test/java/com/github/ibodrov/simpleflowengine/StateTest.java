@@ -0,0 +1,150 @@
+package com.github.ibodrov.simpleflowengine;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class StateTest {
+
+    @Test
+    public void testParentPointers() throws Exception {
+        State root = new State(new StateId(0));
+        State child = new State(new StateId(1));
+        State grandchild = new State(new StateId(2));
+
+        root.addChild(child);
+        child.addChild(grandchild);
+
+        assertNull(root.getParent());
+        assertSame(root, child.getParent());
+        assertSame(child, grandchild.getParent());
+        assertSame(root, grandchild.getRoot());
+        assertEquals(2, grandchild.getDepth());
+
+        // a state can't have two parents
+        try {
+            root.addChild(grandchild);
+            fail("exception expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // restored after deserialization
+        State restored = serializationRoundtrip(root);
+        State c = restored.getChild(new StateId(1));
+        State gc = c.getChild(new StateId(2));
+        assertSame(restored, c.getParent());
+        assertSame(c, gc.getParent());
+        assertSame(restored, gc.getRoot());
+
+        root.removeChild(child);
+        assertNull(child.getParent());
+        assertNull(root.getChild(new StateId(1)));
+        assertSame(child, grandchild.getRoot());
+    }
+
+    @Test
+    public void testEventIndex() throws Exception {
+        State root = new State(new StateId(0));
+        State child = new State(new StateId(1));
+        State grandchild = new State(new StateId(2));
+
+        root.addEventRef("a");
+        child.addEventRef("b");
+        grandchild.addEventRef("c");
+
+        // the events of the added subtree are indexed by the root
+        child.addChild(grandchild);
+        root.addChild(child);
+
+        assertSame(root, root.findEventOwner("a"));
+        assertSame(child, root.findEventOwner("b"));
+        assertSame(grandchild, root.findEventOwner("c"));
+
+        grandchild.addEventRef("d");
+        assertSame(grandchild, root.findEventOwner("d"));
+
+        grandchild.removeEventRef("d");
+        assertNull(root.findEventOwner("d"));
+
+        // the index is rebuilt lazily after deserialization
+        State restored = serializationRoundtrip(root);
+        assertSame(restored, restored.findEventOwner("a"));
+        assertSame(restored.getChild(new StateId(1)), restored.findEventOwner("b"));
+        assertSame(restored.getChild(new StateId(1)).getChild(new StateId(2)), restored.findEventOwner("c"));
+        assertNull(restored.findEventOwner("d"));
+
+        // removing a child unindexes its whole subtree
+        root.removeChild(child);
+        assertSame(root, root.findEventOwner("a"));
+        assertNull(root.findEventOwner("b"));
+        assertNull(root.findEventOwner("c"));
+
+        // the detached subtree has its own index
+        assertSame(grandchild, child.findEventOwner("c"));
+    }
+
+    @Test
+    public void testUnmodifiableViews() {
+        State root = new State(new StateId(0));
+        root.addChild(new State(new StateId(1)));
+        root.addEventRef("a");
+
+        try {
+            root.getChildren().clear();
+            fail("exception expected");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        try {
+            root.getEventRefs().add("b");
+            fail("exception expected");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        assertEquals(1, root.getChildren().size());
+        assertEquals(1, root.getEventRefs().size());
+    }
+
+    private static State serializationRoundtrip(State state) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(baos)) {
+            out.writeObject(state);
+        }
+
+        ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
+        try (ObjectInputStream in = new ObjectInputStream(bais)) {
+            return (State) in.readObject();
+        }
+    }
+}
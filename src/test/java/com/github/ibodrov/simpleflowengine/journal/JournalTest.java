@@ -0,0 +1,296 @@
+package com.github.ibodrov.simpleflowengine.journal;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import com.github.ibodrov.simpleflowengine.Engine;
+import com.github.ibodrov.simpleflowengine.RuntimeContext;
+import com.github.ibodrov.simpleflowengine.SimpleTest.Debug;
+import com.github.ibodrov.simpleflowengine.SimpleTest.TestSuspend;
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.StateDelta;
+import com.github.ibodrov.simpleflowengine.StateId;
+import com.github.ibodrov.simpleflowengine.commands.Block;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+import com.github.ibodrov.simpleflowengine.serialization.BinaryStateSerializer;
+import com.github.ibodrov.simpleflowengine.serialization.StateSerializer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.github.ibodrov.simpleflowengine.commands.Block.Strategy.PARALLEL;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 30000)
+    public void testGroupCommit() throws Exception {
+        Path dir = folder.getRoot().toPath();
+
+        // small segments to test the rollover
+        Journal.Builder builder = new Journal.Builder(dir)
+                .withSegmentSize(4096)
+                .withSyncMode(Journal.SyncMode.SYNC);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (Journal journal = builder.build()) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                int n = i;
+                futures.add(executor.submit(() -> {
+                    journal.append(ByteBuffer.allocate(4).putInt(n).array());
+                    return null;
+                }));
+            }
+
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // reopen and continue
+        try (Journal journal = builder.build()) {
+            journal.append(ByteBuffer.allocate(4).putInt(1000).array());
+
+            Set<Integer> records = new HashSet<>();
+            journal.read(data -> records.add(ByteBuffer.wrap(data).getInt()));
+
+            assertEquals(1001, records.size());
+            for (int i = 0; i <= 1000; i++) {
+                assertTrue(records.contains(i));
+            }
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testTruncateWakesWaiters() throws Exception {
+        Path dir = folder.getRoot().toPath();
+
+        // the flush never happens while the test is running
+        Journal.Builder builder = new Journal.Builder(dir)
+                .withSyncMode(Journal.SyncMode.SYNC)
+                .withGroupCommitDelay(1, TimeUnit.HOURS);
+
+        try (Journal journal = builder.build()) {
+            long pos = journal.write(new byte[]{1, 2, 3});
+
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread waiter = new Thread(() -> {
+                try {
+                    journal.sync(pos);
+                } catch (Throwable t) {
+                    error.set(t);
+                }
+            });
+            waiter.start();
+
+            while (waiter.getState() != Thread.State.WAITING) {
+                Thread.sleep(10);
+            }
+
+            journal.truncate();
+            waiter.join();
+
+            // the record is gone, it never became durable
+            assertTrue(error.get() instanceof IOException);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testRecovery() throws Exception {
+        Command program = new Block(asList(
+                new Debug("hello"),
+                new Block(PARALLEL, asList(
+                        new Block(asList(
+                                new TestSuspend("a"),
+                                new Debug("after a")
+                        )),
+                        new Block(asList(
+                                new Debug("before crash"),
+                                new Hang(),
+                                new Debug("after crash")
+                        ))
+                )),
+                new Debug("goodbye")
+        ));
+
+        Path dir = folder.getRoot().toPath();
+        StateSerializer serializer = new BinaryStateSerializer();
+
+        Hang.reset();
+
+        Engine crashedEngine;
+        Thread crashed;
+        try (Journal journal = new Journal.Builder(dir).build()) {
+            crashedEngine = new Engine.Builder()
+                    .withListener(new JournalListener(journal, serializer))
+                    .build();
+
+            crashed = new Thread(() -> {
+                try {
+                    crashedEngine.start(program);
+                } catch (RuntimeException e) {
+                    // expected, the journal is closed
+                }
+            });
+            crashed.start();
+
+            // "crash" while the second branch is running
+            Hang.reached.await();
+        }
+
+        List<State> recovered;
+        try (Journal journal = new Journal.Builder(dir).build()) {
+            recovered = JournalListener.recover(journal, serializer);
+        }
+
+        Hang.release.countDown();
+        crashed.join();
+        crashedEngine.close();
+
+        assertEquals(1, recovered.size());
+
+        State state = recovered.get(0);
+
+        try (Engine engine = new Engine.Builder().build()) {
+            // the second branch runs again, then the process waits for its event
+            state = engine.recover(state);
+            assertEquals(State.Status.SUSPENDED, state.getStatus());
+
+            state = engine.resume(state, "a");
+            assertEquals(State.Status.DONE, state.getStatus());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testForkRecords() throws Exception {
+        int width = 100;
+
+        List<Command> branches = new ArrayList<>(width);
+        for (int i = 0; i < width; i++) {
+            branches.add(new Debug("#" + i));
+        }
+
+        StateSerializer serializer = new BinaryStateSerializer();
+        try (Journal journal = new Journal.Builder(folder.getRoot().toPath()).build()) {
+            State state;
+            try (Engine engine = new Engine.Builder()
+                    .withListener(new JournalListener(journal, serializer))
+                    .build()) {
+                state = engine.start(new Block(PARALLEL, branches));
+            }
+
+            // the parent is recorded once for the whole block, not once per fork
+            StateId rootId = state.getId();
+            int[] rootRecords = new int[1];
+            journal.read(data -> {
+                try {
+                    for (StateDelta.Node n : serializer.deserializeDelta(data).getChanged()) {
+                        if (n.getId().equals(rootId)) {
+                            rootRecords[0]++;
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            assertTrue("root records: " + rootRecords[0], rootRecords[0] <= 4);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testUnrecordedForks() throws Exception {
+        StateSerializer serializer = new BinaryStateSerializer();
+
+        State root = new State(new StateId(1));
+        root.getStack().push(new Debug("parent"));
+        State child = new State(new StateId(2));
+        child.getStack().push(new Debug("child"));
+
+        try (Journal journal = new Journal.Builder(folder.getRoot().toPath()).build()) {
+            // the child's fork record is written, the parent's record is not
+            journal.append(serializer.serializeDelta(new StateDelta(root.getId(),
+                    Collections.singletonList(StateDelta.Node.of(root)), Collections.emptySet())));
+
+            root.addChild(child);
+            journal.append(serializer.serializeDelta(new StateDelta(root.getId(),
+                    Collections.singletonList(StateDelta.Node.of(child)), Collections.emptySet())));
+
+            List<State> recovered = JournalListener.recover(journal, serializer);
+            assertEquals(1, recovered.size());
+
+            // the recorded parent forks the child again
+            assertTrue(recovered.get(0).getChildren().isEmpty());
+        }
+    }
+
+    /**
+     * Blocks the first execution until released.
+     */
+    public static class Hang implements Command {
+
+        private static final long serialVersionUID = 1L;
+
+        static CountDownLatch reached;
+        static CountDownLatch release;
+
+        static void reset() {
+            reached = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+        }
+
+        @Override
+        public void eval(RuntimeContext ctx, State state) {
+            state.getStack().pop();
+
+            if (reached.getCount() == 0) {
+                return;
+            }
+
+            reached.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.github.ibodrov.simpleflowengine.metrics;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import com.github.ibodrov.simpleflowengine.Engine;
+import com.github.ibodrov.simpleflowengine.SimpleTest.Debug;
+import com.github.ibodrov.simpleflowengine.SimpleTest.TestSuspend;
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.commands.Block;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.github.ibodrov.simpleflowengine.commands.Block.Strategy.PARALLEL;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetricsListenerTest {
+
+    @Test(timeout = 10000)
+    public void testCounters() throws Exception {
+        Command program = new Block(asList(
+                new Debug("hello"),
+                new Block(PARALLEL, asList(
+                        new Debug("a"),
+                        new Block(asList(
+                                new TestSuspend("b"),
+                                new Debug("after b")
+                        ))
+                ))
+        ));
+
+        MetricsListener metrics = new MetricsListener();
+
+        try (Engine engine = new Engine.Builder().withListener(metrics).build()) {
+            State state = engine.start(program);
+            assertEquals(State.Status.SUSPENDED, state.getStatus());
+
+            MetricsSnapshot s = metrics.snapshot();
+            assertEquals(1, s.getStarts());
+            assertEquals(2, s.getForks());
+            assertEquals(1, s.getJoins());
+            // the branch and the root
+            assertEquals(2, s.getSuspends());
+
+            state = engine.resume(state, "b");
+            assertEquals(State.Status.DONE, state.getStatus());
+        }
+
+        MetricsSnapshot s = metrics.snapshot();
+        assertEquals(1, s.getResumes());
+        assertEquals(2, s.getJoins());
+        assertEquals(0, s.getCommandErrors());
+        assertEquals(3, s.getCommandLatencies().get(Debug.class.getName()).getCount());
+        assertEquals(Long.valueOf(0), s.getQueueDepth().get(MetricsListener.DEFAULT_POOL));
+        assertTrue(s.getQueueLatency().getCount() > 0);
+    }
+
+    @Test(timeout = 10000)
+    public void testRejectedSubmission() throws Exception {
+        MetricsListener metrics = new MetricsListener();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+
+        try (Engine engine = new Engine.Builder().withExecutor(executor).withListener(metrics).build()) {
+            engine.start(new Block(PARALLEL, asList(new Debug("a"), new Debug("b"))));
+            fail("exception expected");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+
+        // the rejected state was never queued
+        MetricsSnapshot s = metrics.snapshot();
+        assertEquals(Long.valueOf(0), s.getQueueDepth().get(MetricsListener.DEFAULT_POOL));
+        assertEquals(0, s.getQueueLatency().getCount());
+    }
+
+    @Test
+    public void testHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            h.record(i * 1000);
+        }
+
+        LatencyHistogram.Snapshot s = h.snapshot();
+        assertEquals(100, s.getCount());
+        assertEquals(100_000, s.getMax());
+        assertEquals(50_500, (long) s.getMean());
+
+        // upper bounds of the power-of-two buckets
+        assertEquals(65_535, s.getPercentile(0.5));
+        assertEquals(100_000, s.getPercentile(0.99));
+        assertEquals(1023, s.getPercentile(0));
+    }
+}
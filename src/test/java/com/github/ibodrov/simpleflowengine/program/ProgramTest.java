@@ -0,0 +1,126 @@
+package com.github.ibodrov.simpleflowengine.program;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.Engine;
+import com.github.ibodrov.simpleflowengine.SimpleTest.Debug;
+import com.github.ibodrov.simpleflowengine.SimpleTest.RecordingListener;
+import com.github.ibodrov.simpleflowengine.SimpleTest.TestSuspend;
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.commands.Block;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+import com.github.ibodrov.simpleflowengine.serialization.BinaryStateSerializer;
+import com.github.ibodrov.simpleflowengine.serialization.StateSerializer;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.github.ibodrov.simpleflowengine.commands.Block.Strategy.PARALLEL;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+public class ProgramTest {
+
+    @Test
+    public void testCompile() {
+        Command a = new Debug("a");
+        Command b = new Debug("b");
+        Command c = new Debug("c");
+
+        Program p = Program.compile(new Block(asList(
+                a,
+                new Block(PARALLEL, asList(b, new Block(asList(c, a)))),
+                b
+        )));
+
+        int[] code = p.getCode();
+        assertEquals(Program.CALL, Program.opcode(code[0]));
+        assertEquals(Program.FORK, Program.opcode(code[1]));
+        assertEquals(Program.CALL, Program.opcode(code[2]));
+        assertEquals(Program.END, Program.opcode(code[3]));
+
+        // a, b and c are stored only once
+        assertEquals(3, p.getConstants().length);
+
+        int[][] forks = p.getForkTables();
+        assertEquals(1, forks.length);
+        assertEquals(2, forks[0].length);
+    }
+
+    @Test(timeout = 10000)
+    public void testExecution() throws Exception {
+        Command program = new Block(asList(
+                new Debug("hello"),
+                new Block(PARALLEL, asList(
+                        new Block(asList(
+                                new TestSuspend("a"),
+                                new Debug("after a")
+                        )),
+                        new Block(PARALLEL, asList(
+                                new Debug("b1"),
+                                new Block(asList(
+                                        new TestSuspend("b"),
+                                        new Debug("after b")
+                                ))
+                        ))
+                )),
+                new Debug("goodbye")
+        ));
+
+        Program compiledProgram = Program.compile(program);
+
+        List<String> interpreted = run(engine -> engine.start(program));
+        List<String> compiled = run(engine -> engine.start(compiledProgram));
+
+        assertEquals(asList("hello", "goodbye"), filter(interpreted, "hello", "goodbye"));
+        assertEquals(asList("hello", "goodbye"), filter(compiled, "hello", "goodbye"));
+        assertEquals(interpreted.size(), compiled.size());
+    }
+
+    private static List<String> run(Function<Engine, State> starter) throws Exception {
+        StateSerializer serializer = new BinaryStateSerializer();
+        RecordingListener listener = new RecordingListener();
+
+        try (Engine engine = new Engine.Builder().withListener(listener).build()) {
+            State state = starter.apply(engine);
+            assertEquals(State.Status.SUSPENDED, state.getStatus());
+
+            for (String ev : asList("b", "a")) {
+                state = serializer.deserialize(serializer.serialize(state));
+                state = engine.resume(state, ev);
+            }
+
+            assertEquals(State.Status.DONE, state.getStatus());
+        }
+
+        return listener.purge().stream()
+                .filter(c -> c instanceof Debug)
+                .map(c -> ((Debug) c).getMessage())
+                .collect(Collectors.toList());
+    }
+
+    private static List<String> filter(List<String> l, String... keep) {
+        List<String> k = asList(keep);
+        return l.stream().filter(k::contains).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.ibodrov.simpleflowengine.serialization;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.Engine;
+import com.github.ibodrov.simpleflowengine.SimpleTest.Debug;
+import com.github.ibodrov.simpleflowengine.SimpleTest.TestSuspend;
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.commands.Block;
+import com.github.ibodrov.simpleflowengine.commands.Command;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.ibodrov.simpleflowengine.commands.Block.Strategy.PARALLEL;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryStateSerializerTest {
+
+    @Test(timeout = 10000)
+    public void testRoundtrip() throws Exception {
+        StateSerializer serializer = new BinaryStateSerializer();
+
+        try (Engine engine = new Engine.Builder().build()) {
+            State state = engine.start(program(10));
+            assertEquals(State.Status.SUSPENDED, state.getStatus());
+
+            for (int i = 0; i < 10; i++) {
+                State copy = serializer.deserialize(serializer.serialize(state));
+                assertSameTree(state, copy);
+
+                state = engine.resume(copy, "ev" + i);
+            }
+
+            assertEquals(State.Status.DONE, state.getStatus());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCustomCodecs() throws Exception {
+        CommandCodecRegistry registry = CommandCodecRegistry.withDefaults()
+                .register("test-suspend", TestSuspend.class, new CommandCodec<TestSuspend>() {
+                    @Override
+                    public void write(TestSuspend command, BinaryWriter out) {
+                        out.writeString(command.getEventRef());
+                    }
+
+                    @Override
+                    public TestSuspend read(BinaryReader in) throws IOException {
+                        return new TestSuspend(in.readString());
+                    }
+                })
+                .register("debug", Debug.class, new CommandCodec<Debug>() {
+                    @Override
+                    public void write(Debug command, BinaryWriter out) {
+                        out.writeString(command.getMessage());
+                    }
+
+                    @Override
+                    public Debug read(BinaryReader in) throws IOException {
+                        return new Debug(in.readString());
+                    }
+                });
+
+        StateSerializer binary = new BinaryStateSerializer(registry);
+        StateSerializer java = new JavaStateSerializer();
+
+        try (Engine engine = new Engine.Builder().build()) {
+            State state = engine.start(program(100));
+
+            byte[] a = binary.serialize(state);
+            byte[] b = java.serialize(state);
+            assertTrue("binary: " + a.length + ", java: " + b.length, a.length * 4 < b.length);
+
+            assertSameTree(state, binary.deserialize(a));
+        }
+    }
+
+    private static Command program(int width) {
+        List<Command> branches = new ArrayList<>();
+        for (int i = 0; i < width; i++) {
+            branches.add(new Block(asList(
+                    new Debug("before " + i),
+                    new TestSuspend("ev" + i),
+                    new Debug("after " + i)
+            )));
+        }
+
+        return new Block(asList(
+                new Block(PARALLEL, branches),
+                new Debug("done")
+        ));
+    }
+
+    private static void assertSameTree(State expected, State actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getStatus(), actual.getStatus());
+        assertEquals(expected.getEventRefs(), actual.getEventRefs());
+        assertEquals(expected.getStack().size(), actual.getStack().size());
+        assertEquals(expected.getChildren().size(), actual.getChildren().size());
+
+        for (State c : expected.getChildren()) {
+            State other = actual.getChildren().stream()
+                    .filter(s -> s.getId().equals(c.getId()))
+                    .findFirst()
+                    .orElseThrow(() -> new AssertionError("Child not found: " + c.getId()));
+
+            assertEquals(actual, other.getParent());
+            assertSameTree(c, other);
+        }
+    }
+}
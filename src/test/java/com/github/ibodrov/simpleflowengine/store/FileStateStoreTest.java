@@ -0,0 +1,318 @@
+package com.github.ibodrov.simpleflowengine.store;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+
+import com.github.ibodrov.simpleflowengine.Engine;
+import com.github.ibodrov.simpleflowengine.RuntimeListener;
+import com.github.ibodrov.simpleflowengine.SimpleTest.Debug;
+import com.github.ibodrov.simpleflowengine.SimpleTest.TestSuspend;
+import com.github.ibodrov.simpleflowengine.State;
+import com.github.ibodrov.simpleflowengine.StateId;
+import com.github.ibodrov.simpleflowengine.commands.Block;
+import com.github.ibodrov.simpleflowengine.commands.Timer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static com.github.ibodrov.simpleflowengine.commands.Block.Strategy.PARALLEL;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FileStateStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 30000)
+    public void testReopen() throws Exception {
+        Path dir = folder.getRoot().toPath();
+
+        // small segments and cache to read the states back from older segments
+        FileStateStore.Builder builder = new FileStateStore.Builder(dir)
+                .withSegmentSize(4096)
+                .withCacheSize(2);
+
+        List<StateId> ids = new ArrayList<>();
+        try (FileStateStore store = builder.build();
+             Engine engine = new Engine.Builder().withStateStore(store).build()) {
+
+            for (int i = 0; i < 100; i++) {
+                State s = engine.start(new Block(PARALLEL, asList(
+                        new TestSuspend("a" + i),
+                        new TestSuspend("b" + i))));
+                ids.add(s.getId());
+            }
+
+            assertEquals(100, store.size());
+            assertNotNull(store.load(ids.get(0)));
+        }
+
+        try (FileStateStore store = builder.build()) {
+            assertEquals(100, store.size());
+
+            for (int i = 0; i < ids.size(); i++) {
+                StateId id = ids.get(i);
+                assertEquals(id, store.findRoot("a" + i));
+                assertEquals(id, store.findRoot("b" + i));
+
+                State s = store.load(id);
+                assertEquals(id, s.getId());
+                assertEquals(State.Status.SUSPENDED, s.getStatus());
+            }
+
+            assertNull(store.findRoot("c"));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testCompaction() throws Exception {
+        Path dir = folder.getRoot().toPath();
+
+        FileStateStore.Builder builder = new FileStateStore.Builder(dir)
+                .withSegmentSize(4096)
+                .withCacheSize(2);
+
+        try (FileStateStore store = builder.build()) {
+            // superseded versions and removed processes
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < 20; i++) {
+                    State s = new State(new StateId(i));
+                    s.addEventRef("ev" + i + "-" + round);
+                    store.save(s);
+                }
+            }
+            for (int i = 10; i < 20; i++) {
+                store.remove(new StateId(i));
+            }
+
+            int before = segmentCount(dir);
+            assertTrue(store.compact() > 0);
+            assertTrue(segmentCount(dir) < before);
+
+            // still usable
+            assertEquals(new StateId(0), store.findRoot("ev0-9"));
+            assertNotNull(store.load(new StateId(0)));
+            store.save(new State(new StateId(100)));
+        }
+
+        try (FileStateStore store = builder.build()) {
+            assertEquals(11, store.size());
+
+            for (int i = 0; i < 10; i++) {
+                StateId id = new StateId(i);
+                assertEquals(id, store.findRoot("ev" + i + "-9"));
+                assertNull(store.findRoot("ev" + i + "-8"));
+                assertEquals(id, store.load(id).getId());
+            }
+
+            for (int i = 10; i < 20; i++) {
+                assertNull(store.load(new StateId(i)));
+            }
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testConcurrentSaves() throws Exception {
+        FileStateStore.Builder builder = new FileStateStore.Builder(folder.getRoot().toPath());
+
+        ExecutorService savers = Executors.newFixedThreadPool(8);
+        try (FileStateStore store = builder.build()) {
+            // the savers wait for their fsyncs concurrently
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int base = t * 100;
+                futures.add(savers.submit(() -> {
+                    for (int i = base; i < base + 50; i++) {
+                        State s = new State(new StateId(i));
+                        s.addEventRef("ev" + i);
+                        store.save(s);
+                    }
+                    store.remove(new StateId(base));
+                    return null;
+                }));
+            }
+
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            assertEquals(8 * 49, store.size());
+        } finally {
+            savers.shutdownNow();
+        }
+
+        try (FileStateStore store = builder.build()) {
+            assertEquals(8 * 49, store.size());
+            assertNull(store.findRoot("ev0"));
+            assertEquals(new StateId(1), store.findRoot("ev1"));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testCachedTrees() throws Exception {
+        FileStateStore.Builder builder = new FileStateStore.Builder(folder.getRoot().toPath())
+                .withCacheSize(1);
+
+        try (FileStateStore store = builder.build()) {
+            State s = new State(new StateId(1));
+            s.addEventRef("a");
+            store.save(s);
+
+            // the saved tree itself is cached
+            assertSame(s, store.load(s.getId()));
+
+            // evicted by another tree, loaded from the log once
+            store.save(new State(new StateId(2)));
+            State loaded = store.load(s.getId());
+            assertNotSame(s, loaded);
+            assertEquals(Collections.singleton("a"), loaded.getEventRefs());
+            assertSame(loaded, store.load(s.getId()));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testConcurrentResumes() throws Exception {
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try (FileStateStore store = new FileStateStore.Builder(folder.getRoot().toPath()).build();
+             Engine engine = new Engine.Builder().withStateStore(store).build()) {
+
+            for (int i = 0; i < 20; i++) {
+                engine.start(new Block(PARALLEL, asList(new TestSuspend("e" + i), new TestSuspend("f" + i))));
+
+                // both events of the same process at once, neither update is lost
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<State>> futures = new ArrayList<>();
+                for (String eventRef : asList("e" + i, "f" + i)) {
+                    futures.add(callers.submit(() -> {
+                        start.await();
+                        return engine.resume(eventRef);
+                    }));
+                }
+
+                start.countDown();
+                for (Future<State> f : futures) {
+                    f.get();
+                }
+
+                assertEquals(0, store.size());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testTimersOfLoadedCopies() throws Exception {
+        AtomicInteger fired = new AtomicInteger();
+        RuntimeListener listener = new RuntimeListener() {
+            @Override
+            public void onResume(State state, String eventRef) {
+                if ("t".equals(eventRef)) {
+                    fired.incrementAndGet();
+                }
+            }
+        };
+
+        FileStateStore.Builder builder = new FileStateStore.Builder(folder.getRoot().toPath())
+                .withCacheSize(1);
+
+        try (FileStateStore store = builder.build();
+             Engine engine = new Engine.Builder().withStateStore(store).withListener(listener).build()) {
+
+            State s = engine.start(new Block(PARALLEL, asList(
+                    new TestSuspend("a"),
+                    new Timer("t", 300, TimeUnit.MILLISECONDS))));
+
+            // evicts the started copy, the resume loads another one
+            engine.start(new TestSuspend("other"));
+            State resumed = engine.resume("a");
+            assertNotSame(s, resumed);
+
+            // the timer fires once, for the loaded copy
+            while (store.size() > 1) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(300);
+
+            assertEquals(1, fired.get());
+            assertEquals(State.Status.DONE, resumed.getStatus());
+            assertEquals(1, store.size());
+            assertNull(store.findRoot("a"));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testResumeByEventRef() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        FileStateStore.Builder builder = new FileStateStore.Builder(dir);
+
+        try (FileStateStore store = builder.build();
+             Engine engine = new Engine.Builder().withStateStore(store).build()) {
+
+            engine.start(new Block(asList(
+                    new Debug("hello"),
+                    new Block(PARALLEL, asList(new TestSuspend("a"), new TestSuspend("b"))),
+                    new Debug("goodbye"))));
+        }
+
+        // the process is loaded from the disk
+        try (FileStateStore store = builder.build();
+             Engine engine = new Engine.Builder().withStateStore(store).build()) {
+
+            State s = engine.resume("a");
+            assertEquals(State.Status.SUSPENDED, s.getStatus());
+            assertNull(store.findRoot("a"));
+            assertEquals(s.getId(), store.findRoot("b"));
+
+            // the second event uses the cached state
+            s = engine.resume("b");
+            assertEquals(State.Status.DONE, s.getStatus());
+            assertEquals(0, store.size());
+        }
+
+        try (FileStateStore store = builder.build()) {
+            assertEquals(0, store.size());
+        }
+    }
+
+    private static int segmentCount(Path dir) throws Exception {
+        try (Stream<Path> s = Files.list(dir)) {
+            return (int) s.count();
+        }
+    }
+}
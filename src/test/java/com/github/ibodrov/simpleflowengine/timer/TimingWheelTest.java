@@ -0,0 +1,120 @@
+package com.github.ibodrov.simpleflowengine.timer;
+
+/*-
+ * *****
+ * Simple Flow Engine
+ * -----
+ * Copyright (C) 2019 Ivan Bodrov
+ * -----
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =====
+ */
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    @Test(timeout = 10000)
+    public void testDeadlines() throws Exception {
+        int count = 1000;
+        CountDownLatch latch = new CountDownLatch(count);
+        ConcurrentLinkedQueue<Long> early = new ConcurrentLinkedQueue<>();
+
+        // a tick of 1ms, so the deadlines span multiple levels
+        try (TimingWheel wheel = new TimingWheel(1)) {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                long deadline = now + (i * 7) % 1500 - 100;
+                wheel.schedule(deadline, () -> {
+                    if (System.currentTimeMillis() < deadline) {
+                        early.add(deadline);
+                    }
+                    latch.countDown();
+                });
+            }
+
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertTrue("Fired too early: " + early, early.isEmpty());
+            assertEquals(0, wheel.size());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCancel() throws Exception {
+        CountDownLatch fired = new CountDownLatch(1);
+        List<TimingWheel.Timeout> cancelled = new ArrayList<>();
+
+        try (TimingWheel wheel = new TimingWheel(1)) {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < 100_000; i++) {
+                cancelled.add(wheel.schedule(now + 60_000 + i, () -> {
+                    throw new IllegalStateException("Cancelled timeout fired");
+                }));
+            }
+
+            // far beyond the range of the top level
+            TimingWheel.Timeout distant = wheel.schedule(Long.MAX_VALUE, () -> {
+            });
+
+            TimingWheel.Timeout t = wheel.schedule(now + 200_000, fired::countDown);
+            assertEquals(100_002, wheel.size());
+
+            for (TimingWheel.Timeout c : cancelled) {
+                assertTrue(c.cancel());
+            }
+            assertFalse(cancelled.get(0).cancel());
+            assertTrue(distant.cancel());
+            assertEquals(1, wheel.size());
+
+            assertTrue(t.cancel());
+            wheel.schedule(now, fired::countDown);
+            fired.await();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testIdle() throws Exception {
+        try (TimingWheel wheel = new TimingWheel(10)) {
+            // the thread sleeps until there are timeouts
+            Thread.sleep(300);
+
+            for (int i = 0; i < 3; i++) {
+                CountDownLatch fired = new CountDownLatch(1);
+                long deadline = System.currentTimeMillis() + 50;
+                wheel.schedule(deadline, fired::countDown);
+
+                assertTrue(fired.await(1, TimeUnit.SECONDS));
+                assertTrue(System.currentTimeMillis() >= deadline);
+                assertEquals(0, wheel.size());
+
+                Thread.sleep(100);
+            }
+
+            // an earlier timeout wakes the thread sleeping until a later one
+            CountDownLatch fired = new CountDownLatch(1);
+            wheel.schedule(System.currentTimeMillis() + 60_000, () -> {
+            });
+            wheel.schedule(System.currentTimeMillis() + 50, fired::countDown);
+            assertTrue(fired.await(1, TimeUnit.SECONDS));
+        }
+    }
+}